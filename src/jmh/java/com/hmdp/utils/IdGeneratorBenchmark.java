@@ -0,0 +1,154 @@
+package com.hmdp.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.redis.connection.ReactiveRedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ReactiveValueOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Proxy;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * RedisIdWorker和SnowflakeIdGenerator的发号吞吐
+ * redis换成只实现INCR/INCRBY的本地替身，latencyMicros模拟一次网络往返，不需要启动redis
+ * 运行：mvn -Pjmh compile exec:exec，或者直接运行main方法
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class IdGeneratorBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class RedisWorkerState {
+        //1是每个id INCR一次，其他是号段模式每段的长度
+        @Param({"1", "1000"})
+        public long segmentStep;
+
+        @Param({"0", "200"})
+        public long latencyMicros;
+
+        RedisIdWorker worker;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            StubRedis redis = new StubRedis(TimeUnit.MICROSECONDS.toNanos(latencyMicros));
+            worker = new RedisIdWorker(redis.template(), redis.reactiveTemplate(), segmentStep);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SnowflakeState {
+        SnowflakeIdGenerator generator;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            generator = new SnowflakeIdGenerator(null, null, Clock.systemUTC());
+            generator.leased(1, Long.MAX_VALUE);
+        }
+    }
+
+    @Benchmark
+    public long redisIdWorker(RedisWorkerState state) {
+        return state.worker.nextId("order");
+    }
+
+    @Benchmark
+    public long snowflake(SnowflakeState state) {
+        return state.generator.nextId("order");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(IdGeneratorBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    /**
+     * 只支持RedisIdWorker用到的INCR和INCRBY，其他命令抛UnsupportedOperationException
+     * 同步命令在调用线程里等待latencyNanos，响应式命令延迟发出结果，和lettuce一样不占用调用线程
+     */
+    static final class StubRedis {
+        private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+        private final long latencyNanos;
+
+        StubRedis(long latencyNanos) {
+            this.latencyNanos = latencyNanos;
+        }
+
+        private long increment(String key, long delta) {
+            return counters.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(delta);
+        }
+
+        StringRedisTemplate template() {
+            ValueOperations<String, String> ops = proxy(ValueOperations.class, args -> {
+                if (latencyNanos > 0) {
+                    LockSupport.parkNanos(latencyNanos);
+                }
+                return increment((String) args[0], args.length == 1 ? 1 : ((Number) args[1]).longValue());
+            });
+            return new StringRedisTemplate() {
+                @Override
+                public ValueOperations<String, String> opsForValue() {
+                    return ops;
+                }
+            };
+        }
+
+        ReactiveStringRedisTemplate reactiveTemplate() {
+            ReactiveValueOperations<String, String> ops = proxy(ReactiveValueOperations.class, args -> {
+                String key = (String) args[0];
+                long delta = args.length == 1 ? 1 : ((Number) args[1]).longValue();
+                Mono<Long> result = Mono.fromSupplier(() -> increment(key, delta));
+                return latencyNanos > 0 ? result.delaySubscription(Duration.ofNanos(latencyNanos)) : result;
+            });
+            ReactiveRedisConnectionFactory connectionFactory = proxy(ReactiveRedisConnectionFactory.class, args -> {
+                throw new UnsupportedOperationException();
+            });
+            return new ReactiveStringRedisTemplate(connectionFactory) {
+                @Override
+                public ReactiveValueOperations<String, String> opsForValue() {
+                    return ops;
+                }
+            };
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<?> type, IncrementHandler handler) {
+            return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+                if (!"increment".equals(method.getName())) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                return handler.handle(args);
+            });
+        }
+
+        private interface IncrementHandler {
+            Object handle(Object[] args);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.VoucherMapper;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisBloomFilter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+@Slf4j
+@Configuration
+public class BloomFilterConfig {
+
+    private static final ScheduledExecutorService BLOOM_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+
+    @Bean
+    public RedisBloomFilter shopBloomFilter(StringRedisTemplate stringRedisTemplate,
+                                            RedisTemplate<String, byte[]> byteRedisTemplate, MeterRegistry meterRegistry) {
+        return new RedisBloomFilter("shop", expectedInsertions, fpp, stringRedisTemplate, byteRedisTemplate, meterRegistry);
+    }
+
+    @Bean
+    public RedisBloomFilter voucherBloomFilter(StringRedisTemplate stringRedisTemplate,
+                                               RedisTemplate<String, byte[]> byteRedisTemplate, MeterRegistry meterRegistry) {
+        return new RedisBloomFilter("voucher", expectedInsertions, fpp, stringRedisTemplate, byteRedisTemplate, meterRegistry);
+    }
+
+    //启动后在后台从数据库重建，之后定时从redis同步，补上错过的广播
+    @Bean
+    public ApplicationRunner bloomFilterInitializer(@Qualifier("shopBloomFilter") RedisBloomFilter shopBloomFilter,
+                                                    @Qualifier("voucherBloomFilter") RedisBloomFilter voucherBloomFilter,
+                                                    ShopMapper shopMapper, VoucherMapper voucherMapper,
+                                                    CacheClient cacheClient) {
+        return args -> {
+            cacheClient.registerBloomFilter(CACHE_SHOP_KEY, shopBloomFilter);
+            BLOOM_EXECUTOR.execute(() -> {
+                try {
+                    long begin = System.currentTimeMillis();
+                    shopBloomFilter.rebuild(consumer -> scanIds(shopMapper, consumer));
+                    voucherBloomFilter.rebuild(consumer -> scanIds(voucherMapper, consumer));
+                    log.info("布隆过滤器重建完成，耗时{}ms", System.currentTimeMillis() - begin);
+                } catch (Exception e) {
+                    log.error("布隆过滤器重建失败", e);
+                }
+            });
+            BLOOM_EXECUTOR.scheduleWithFixedDelay(() -> {
+                try {
+                    shopBloomFilter.syncFromRedis();
+                    voucherBloomFilter.syncFromRedis();
+                } catch (Exception e) {
+                    log.error("布隆过滤器同步失败", e);
+                }
+            }, BLOOM_SYNC_INTERVAL, BLOOM_SYNC_INTERVAL, TimeUnit.SECONDS);
+        };
+    }
+
+    //按主键分批扫描id，不做全表加载
+    private static <T> void scanIds(BaseMapper<T> mapper, LongConsumer consumer) {
+        long lastId = 0;
+        while (true) {
+            List<Object> ids = mapper.selectObjs(new QueryWrapper<T>()
+                    .select("id").gt("id", lastId).orderByAsc("id").last("limit " + BLOOM_SCAN_BATCH));
+            if (ids.isEmpty()) {
+                return;
+            }
+            for (Object id : ids) {
+                consumer.accept(((Number) id).longValue());
+            }
+            lastId = ((Number) ids.get(ids.size() - 1)).longValue();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.TtlPolicy;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
@@ -12,6 +13,8 @@ public class MvcConfig implements WebMvcConfigurer {
 
     @Resource
     private StringRedisTemplate redisTemplate;
+    @Resource
+    private TtlPolicy ttlPolicy;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -25,6 +28,6 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/voucher/**",
                         "/upload/**"
                 ).order(1);
-        registry.addInterceptor(new RefreshTokenInterceptor(redisTemplate)).addPathPatterns("/**").order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(redisTemplate, ttlPolicy)).addPathPatterns("/**").order(0);
     }
 }
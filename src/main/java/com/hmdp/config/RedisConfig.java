@@ -0,0 +1,91 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisScriptExecutor;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import com.hmdp.utils.SnowflakeIdGenerator;
+import com.hmdp.utils.TtlPolicy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+@Configuration
+public class RedisConfig {
+
+    //value直接存byte[]，给CacheClient用
+    @Bean
+    public RedisTemplate<String, byte[]> byteRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+
+    //缓存序列化方式，binary读到旧的json数据时会交给json解析
+    @Bean
+    public CacheCodec cacheCodec(@Value("${hmdp.cache.codec:binary}") String codec) {
+        JsonCacheCodec jsonCodec = new JsonCacheCodec();
+        return "json".equalsIgnoreCase(codec) ? jsonCodec : new BinaryCacheCodec(jsonCodec);
+    }
+
+    //订单id生成方式，snowflake只在启动和续期workerId时访问redis
+    @Bean
+    public IdGenerator idGenerator(@Value("${hmdp.id.generator:redis}") String generator,
+                                   @Value("${hmdp.id.segment-step:1000}") long segmentStep,
+                                   StringRedisTemplate stringRedisTemplate,
+                                   ReactiveStringRedisTemplate reactiveStringRedisTemplate,
+                                   RedisScriptExecutor scriptExecutor) {
+        if ("snowflake".equalsIgnoreCase(generator)) {
+            return new SnowflakeIdGenerator(stringRedisTemplate, scriptExecutor);
+        }
+        return new RedisIdWorker(stringRedisTemplate, reactiveStringRedisTemplate, segmentStep);
+    }
+
+    //过期时间抖动，登录token各自续期，不容易同时过期，抖动小一些
+    @Bean
+    public TtlPolicy ttlPolicy(@Value("${hmdp.cache.ttl.distribution:uniform}") String distribution,
+                               @Value("${hmdp.cache.ttl.jitter:0.1}") double jitter,
+                               @Value("${hmdp.cache.ttl.logical-skew:0.2}") double logicalSkew) {
+        return new TtlPolicy(TtlPolicy.Distribution.valueOf(distribution.toUpperCase()), jitter, logicalSkew)
+                .override(LOGIN_USER_KEY, null, 0.05);
+    }
+
+    //订阅redis频道，其他节点删除缓存时清理本节点的本地缓存，新增布隆过滤器元素时同步本地副本，同步售罄标记
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       CacheClient cacheClient,
+                                                                       List<RedisBloomFilter> bloomFilters,
+                                                                       SeckillSoldOutFlags soldOutFlags) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        container.addMessageListener(
+                (message, pattern) -> cacheClient.evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        for (RedisBloomFilter bloomFilter : bloomFilters) {
+            container.addMessageListener(bloomFilter, new ChannelTopic(bloomFilter.getChannel()));
+        }
+        container.addMessageListener(soldOutFlags, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        return container;
+    }
+}
@@ -6,6 +6,7 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
@@ -26,6 +27,9 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private RedisBloomFilter shopBloomFilter;
+
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
@@ -45,6 +49,8 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        // 加入布隆过滤器
+        shopBloomFilter.put(shop.getId());
         // 返回店铺id
         return Result.ok(shop.getId());
     }
@@ -60,6 +66,24 @@ public class ShopController {
         return shopService.update(shop);
     }
 
+    /**
+     * 预热商铺缓存，后台执行
+     * @return 无
+     */
+    @PostMapping("/cache/warm-up")
+    public Result warmUpCache() {
+        return shopService.warmUpCache();
+    }
+
+    /**
+     * 查询缓存预热进度
+     * @return 已预热数量、耗时等
+     */
+    @GetMapping("/cache/warm-up")
+    public Result queryWarmUpStatus() {
+        return shopService.queryWarmUpStatus();
+    }
+
     /**
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
@@ -4,6 +4,8 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.SeckillKeys;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -23,6 +25,12 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    @Resource
+    private RedisBloomFilter voucherBloomFilter;
+
+    @Resource
+    private SeckillKeys seckillKeys;
+
     /**
      * 新增普通券
      * @param voucher 优惠券信息
@@ -31,6 +39,7 @@ public class VoucherController {
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
         voucherService.save(voucher);
+        voucherBloomFilter.put(voucher.getId());
         return Result.ok(voucher.getId());
     }
 
@@ -45,6 +54,18 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 修改秒杀券的限流速率
+     * @param voucherId 优惠券id
+     * @param rate 每秒最多放行的请求数，不传取消限制
+     * @return 无
+     */
+    @PutMapping("seckill/{id}/rate")
+    public Result updateSeckillRate(@PathVariable("id") Long voucherId, @RequestParam(value = "rate", required = false) Long rate) {
+        seckillKeys.saveRate(voucherId, rate == null || rate <= 0 ? null : rate);
+        return Result.ok();
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -1,14 +1,21 @@
 package com.hmdp.controller;
 
 
+import com.hmdp.dto.OrderStatusDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.UserHolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -25,8 +32,40 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    @Resource
+    private SeckillAdmission seckillAdmission;
+
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
+    public Result seckillVoucher(@PathVariable("id") Long voucherId, HttpServletResponse response) {
+        //超过限流速率的请求直接返回429，不进入秒杀逻辑
+        if (!seckillAdmission.tryAcquire(voucherId)) {
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            return Result.fail("请求太多，请稍后再试");
+        }
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    //异步版本，限流和秒杀都不在请求线程里等redis返回
+    @PostMapping("seckill/{id}/async")
+    public CompletableFuture<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId, HttpServletResponse response) {
+        //UserHolder是ThreadLocal，要在请求线程里取出来
+        Long userId = UserHolder.getUser().getId();
+        return seckillAdmission.tryAcquireAsync(voucherId).thenCompose(allowed -> {
+            if (!allowed) {
+                response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+                return CompletableFuture.completedFuture(Result.fail("请求太多，请稍后再试"));
+            }
+            return voucherOrderService.seckillVoucherAsync(voucherId, userId);
+        });
+    }
+
+    //异步下单后轮询订单状态
+    @GetMapping("{id}")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        OrderStatusDTO status = voucherOrderService.queryOrderStatus(orderId);
+        if (status == null) {
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(status);
+    }
 }
@@ -0,0 +1,14 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderStatusDTO {
+    private Long orderId;
+    //QUEUED：排队中，PERSISTED：已创建，FAILED：创建失败
+    private String status;
+}
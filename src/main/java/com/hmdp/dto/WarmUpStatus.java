@@ -0,0 +1,15 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+public class WarmUpStatus {
+    private Boolean running;
+    private Long warmed;
+    private LocalDateTime startTime;
+    private LocalDateTime endTime;
+    private Long durationMillis;
+    private String error;
+}
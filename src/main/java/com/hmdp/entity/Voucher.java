@@ -78,6 +78,18 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 秒杀库存分桶数，热点券拆到多个key上，不填为1
+     */
+    @TableField(exist = false)
+    private Integer stockBuckets;
+
+    /**
+     * 秒杀接口每秒最多放行的请求数，所有节点一起算，不填不限制
+     */
+    @TableField(exist = false)
+    private Long admissionRate;
+
     /**
      * 生效时间
      */
@@ -0,0 +1,18 @@
+package com.hmdp.service;
+
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.utils.CacheChangeSource;
+
+/**
+ * <p>
+ *  服务类
+ * </p>
+ */
+public interface ICacheOutboxService extends IService<CacheOutbox>, CacheChangeSource {
+
+    /**
+     * 记录一次缓存变更，要在业务事务里调用，和业务数据一起提交
+     */
+    void record(String cacheKey);
+}
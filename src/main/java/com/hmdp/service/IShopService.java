@@ -17,4 +17,8 @@ public interface IShopService extends IService<Shop> {
     Result queryById(Long id);
 
     Result update(Shop shop);
+
+    Result warmUpCache();
+
+    Result queryWarmUpStatus();
 }
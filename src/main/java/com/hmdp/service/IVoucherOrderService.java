@@ -1,9 +1,14 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.OrderStatusDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +21,35 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherId);
+    /**
+     * 异步秒杀，userId要在请求线程里从UserHolder取出来
+     */
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId, Long userId);
+
+    /**
+     * @return 成功或者查重时订单已经存在时返回null，否则返回失败原因
+     * 插入时唯一索引冲突返回DUPLICATE，冲突的可能是并发落库的同一个订单，要在事务提交后再读一次判断
+     */
+    FailReason createVoucherOrder(VoucherOrder voucherId);
+
+    /**
+     * 同一张优惠券的一批订单在一个事务里落库：一次扣减库存，一条多行INSERT
+     * @return 没能创建的订单id -> 失败原因
+     */
+    Map<Long, FailReason> createVoucherOrders(Long voucherId, List<VoucherOrder> orders);
+
+    /**
+     * 查询当前用户的订单状态，不存在时返回null
+     */
+    OrderStatusDTO queryOrderStatus(Long orderId);
+
+    /**
+     * 订单没能落库的原因
+     */
+    enum FailReason {
+        //用户已经有别的订单，redis为这个订单扣的库存在数据库里还在，可以退回
+        DUPLICATE,
+        //数据库库存不够，redis多卖出的这份库存数据库里没有，不能退回
+        SOLD_OUT
+    }
 }
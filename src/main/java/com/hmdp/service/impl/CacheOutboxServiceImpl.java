@@ -0,0 +1,126 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.service.ICacheOutboxService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static com.hmdp.utils.RedisConstants.CACHE_OUTBOX_BATCH;
+import static com.hmdp.utils.RedisConstants.CACHE_OUTBOX_POLL_INTERVAL;
+import static com.hmdp.utils.RedisConstants.CACHE_OUTBOX_REDELIVER_TIMEOUT;
+
+/**
+ * <p>
+ * 发件箱表实现的变更来源：写库时在同一个事务里插入一行，提交后后台线程按id顺序拉取交给listener，
+ * listener确认处理完之后才删除，至少处理一次，多个节点重复处理也只是多删一次缓存
+ * </p>
+ */
+@Slf4j
+@Service
+public class CacheOutboxServiceImpl extends ServiceImpl<CacheOutboxMapper, CacheOutbox> implements ICacheOutboxService {
+
+    private static final ExecutorService OUTBOX_POLLER = Executors.newSingleThreadExecutor();
+
+    //事务提交后唤醒拉取线程
+    private final Semaphore wakeUp = new Semaphore(0);
+    //已投递还没确认的行id -> 投递时间
+    private final Map<Long, Long> inFlight = new ConcurrentHashMap<>();
+    //已确认的行id，由拉取线程批量删除
+    private final Queue<Long> acked = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public void record(String cacheKey) {
+        save(new CacheOutbox().setCacheKey(cacheKey).setCreateTime(LocalDateTime.now()));
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    wakeUp.release();
+                }
+            });
+        } else {
+            wakeUp.release();
+        }
+    }
+
+    @Override
+    public void subscribe(BiConsumer<Long, String> listener) {
+        OUTBOX_POLLER.submit(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    //没有提交通知时也定时拉一次，兜底其他节点写入的变更和超时没确认的变更
+                    wakeUp.tryAcquire(CACHE_OUTBOX_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    wakeUp.drainPermits();
+                    removeAcked();
+                    dispatch(listener);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    log.error("拉取缓存变更失败", e);
+                }
+            }
+        });
+    }
+
+    //处理完才删行，listener失败或者节点宕机时行还在，超时后重新投递
+    @Override
+    public void ack(Long changeId) {
+        acked.add(changeId);
+    }
+
+    //按id分页扫一遍发件箱，投递还没投递过的和投递后超时没确认的行
+    private void dispatch(BiConsumer<Long, String> listener) {
+        long now = System.currentTimeMillis();
+        Set<Long> seen = new HashSet<>();
+        long lastId = 0;
+        List<CacheOutbox> rows;
+        do {
+            rows = query().gt("id", lastId).orderByAsc("id").last("limit " + CACHE_OUTBOX_BATCH).list();
+            for (CacheOutbox row : rows) {
+                Long id = row.getId();
+                lastId = id;
+                seen.add(id);
+                Long dispatchedAt = inFlight.get(id);
+                if (dispatchedAt != null && now - dispatchedAt < CACHE_OUTBOX_REDELIVER_TIMEOUT) {
+                    continue;
+                }
+                inFlight.put(id, now);
+                listener.accept(id, row.getCacheKey());
+            }
+        } while (rows.size() == CACHE_OUTBOX_BATCH);
+        //已经被其他节点确认删掉的行不再跟踪
+        inFlight.keySet().retainAll(seen);
+    }
+
+    private void removeAcked() {
+        List<Long> ids = new ArrayList<>();
+        Long id;
+        while ((id = acked.poll()) != null) {
+            ids.add(id);
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        removeByIds(ids);
+        ids.forEach(inFlight::remove);
+    }
+}
@@ -5,23 +5,41 @@ import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.WarmUpStatus;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.ICacheOutboxService;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidator;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.RedisScriptExecutor;
+import com.hmdp.utils.RedisScripts;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -33,6 +51,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -45,15 +64,39 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisScriptExecutor scriptExecutor;
+
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+
+    //商铺变更后直接用新值刷新缓存，不删除，避免热点key被删后击穿
+    @PostConstruct
+    public void registerCacheLoader() {
+        cacheInvalidator.registerLoader(CACHE_SHOP_KEY, id -> getById(Long.valueOf(id)), CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
     //开线程池
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
+    //缓存预热，每秒最多写入多少个商铺
+    @Value("${hmdp.cache.warm-up.rate:20000}")
+    private long warmUpRate;
+    @Value("${hmdp.cache.warm-up.on-startup:true}")
+    private boolean warmUpOnStartup;
+    private static final ExecutorService WARM_UP_EXECUTOR = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean warmUpRunning = new AtomicBoolean();
+    private final AtomicLong warmed = new AtomicLong();
+    private volatile LocalDateTime warmUpStartTime;
+    private volatile LocalDateTime warmUpEndTime;
+    private volatile String warmUpError;
+
     public Result queryById(Long id) {
-        //解决缓存穿透
-        //Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
-        //Shop shop = queryWithMutex(id);
-        //逻辑过期解决缓存击穿
-        Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        //按访问频率和重建代价自动选择：热点逻辑过期，冷数据设TTL，中间的用互斥锁
+        Shop shop = cacheClient.query(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
         if(shop == null){
             return Result.fail("店铺不存在！");
         }
@@ -70,11 +113,112 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //更新数据库
         updateById(shop);
 
-        //删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        //变更随事务一起写入发件箱，提交后异步刷新缓存并延时双删
+        cacheOutboxService.record(CACHE_SHOP_KEY + id);
+        return Result.ok();
+    }
+
+    //部署或redis切换后缓存是空的，启动时预热一次
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpOnStartup() {
+        if (warmUpOnStartup) {
+            warmUpCache();
+        }
+    }
+
+    @Override
+    public Result warmUpCache() {
+        if (!warmUpRunning.compareAndSet(false, true)) {
+            return Result.fail("缓存预热正在进行中");
+        }
+        //多个节点同时启动时只让一个节点预热，锁的值是本次预热的标识，释放时只删自己的锁
+        String owner = UUID.randomUUID().toString();
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(LOCK_WARM_UP_KEY, owner, LOCK_WARM_UP_TTL, TimeUnit.SECONDS);
+        if (!BooleanUtil.isTrue(locked)) {
+            warmUpRunning.set(false);
+            return Result.fail("其他节点正在预热缓存");
+        }
+        warmed.set(0);
+        warmUpStartTime = LocalDateTime.now();
+        warmUpEndTime = null;
+        warmUpError = null;
+        WARM_UP_EXECUTOR.submit(() -> {
+            try {
+                warmUp();
+                log.info("商铺缓存预热完成，共{}个，耗时{}ms", warmed.get(),
+                        Duration.between(warmUpStartTime, LocalDateTime.now()).toMillis());
+            } catch (Exception e) {
+                warmUpError = e.getMessage();
+                log.error("商铺缓存预热失败", e);
+            } finally {
+                warmUpEndTime = LocalDateTime.now();
+                //预热超过锁的有效期时锁可能已经被其他节点拿走，不能直接删除
+                scriptExecutor.execute(RedisScripts.UNLOCK, Collections.singletonList(LOCK_WARM_UP_KEY), owner);
+                warmUpRunning.set(false);
+            }
+        });
         return Result.ok();
     }
 
+    @Override
+    public Result queryWarmUpStatus() {
+        WarmUpStatus status = new WarmUpStatus();
+        status.setRunning(warmUpRunning.get());
+        status.setWarmed(warmed.get());
+        status.setStartTime(warmUpStartTime);
+        status.setEndTime(warmUpEndTime);
+        status.setError(warmUpError);
+        if (warmUpStartTime != null) {
+            LocalDateTime end = warmUpEndTime == null ? LocalDateTime.now() : warmUpEndTime;
+            status.setDurationMillis(Duration.between(warmUpStartTime, end).toMillis());
+        }
+        return Result.ok(status);
+    }
+
+    //按id分页读取tb_shop，每页一条独立的查询，限速等待时不占用数据库连接，也不会长时间持有read view
+    private void warmUp() {
+        long begin = System.currentTimeMillis();
+        Map<String, Shop> batch = new HashMap<>(CACHE_WARM_UP_BATCH * 4 / 3 + 1);
+        long lastId = 0;
+        while (true) {
+            List<Shop> page = query().gt("id", lastId).orderByAsc("id")
+                    .last("limit " + CACHE_WARM_UP_BATCH).list();
+            if (page.isEmpty()) {
+                break;
+            }
+            for (Shop shop : page) {
+                batch.put(CACHE_SHOP_KEY + shop.getId(), shop);
+            }
+            flushWarmUp(batch, begin);
+            lastId = page.get(page.size() - 1).getId();
+            if (page.size() < CACHE_WARM_UP_BATCH) {
+                break;
+            }
+        }
+    }
+
+    private void flushWarmUp(Map<String, Shop> batch, long begin) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        cacheClient.preload(batch, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        long count = warmed.addAndGet(batch.size());
+        batch.clear();
+        if (count % (CACHE_WARM_UP_BATCH * 100L) == 0) {
+            log.info("商铺缓存已预热{}个", count);
+        }
+        //限速，写得比设定速率快就等一等，给线上请求留出redis和连接池
+        long waitMillis = count * 1000 / warmUpRate - (System.currentTimeMillis() - begin);
+        if (waitMillis > 0) {
+            try {
+                Thread.sleep(waitMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     //加锁
     private boolean tryLock(String key){
         Boolean  flag = stringRedisTemplate.opsForValue().setIfAbsent(key,"1",10,TimeUnit.SECONDS);
@@ -120,54 +264,6 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return shop;
     }*/
 
-    private Shop queryWithMutex(Long id){
-        String key = CACHE_SHOP_KEY + id;
-        //从redis查店铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-
-        //判断是否存在（null）
-        if(StrUtil.isNotBlank(shopJson)){
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-
-        //看是否命中空值
-        if(shopJson == null){
-            return null;
-        }
-
-        //获得互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        Shop shop = null;
-        try {
-            if(!isLock){
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-            //成功拿到锁，再查redis，看有没有这个数据
-            shop = getById(id);
-
-            //看是否存在
-            if(shop != null){
-                //将空值写入redis
-                stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-                return null;
-            }
-
-            //存在，打入redis,设置超时时间
-            stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            //释放互斥锁
-            unlock(key);
-        }
-
-        //返回
-        return shop;
-    }
-
     //逻辑过期
     private void saveShop2Redis(Long id,Long expireSeconds){
         Shop shop = getById(id);
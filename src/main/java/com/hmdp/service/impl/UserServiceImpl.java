@@ -11,6 +11,7 @@ import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.TtlPolicy;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.redis.core.RedisTemplate;
@@ -43,6 +44,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     private StringRedisTemplate stringRedisTemplate;
     @Autowired
     private RedisTemplate<Object, Object> redisTemplate;
+    @Resource
+    private TtlPolicy ttlPolicy;
 
     @Override
     public Result sendCode(String phone, HttpSession session) {
@@ -95,7 +98,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         stringRedisTemplate.opsForHash().putAll(tokenKey,userMap);
 
         //设置有效期
-        stringRedisTemplate.expire(tokenKey,LOGIN_USER_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.expire(tokenKey,
+                ttlPolicy.ttlSeconds(tokenKey, TimeUnit.MINUTES.toSeconds(LOGIN_USER_TTL)), TimeUnit.SECONDS);
         return Result.ok(user);
     }
 
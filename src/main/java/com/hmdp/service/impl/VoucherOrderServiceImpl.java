@@ -1,27 +1,61 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.OrderStatusDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.OrderStatusStore;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisScriptExecutor;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillMeta;
+import com.hmdp.utils.SeckillSoldOutFlags;
+import com.hmdp.utils.SeckillStockReconciler;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.core.RedisTemplate;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -31,100 +65,400 @@ import java.util.concurrent.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
-    private RedissonClient redissonClient;
+    private RedisScriptExecutor scriptExecutor;
+    @Resource
+    private RedisBloomFilter voucherBloomFilter;
+    @Resource
+    private SeckillSoldOutFlags soldOutFlags;
+    @Resource
+    private SeckillKeys seckillKeys;
     @Resource
-    private RedisTemplate<Object, Object> redisTemplate;
+    private OrderStatusStore orderStatusStore;
 
+    //注入自己的代理对象，createVoucherOrder才有事务
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
-    //阻塞队列：缓冲订单需求
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    //线程池
+    //每个节点一个消费者，重启后名字会变，旧名字下没确认的消息由claimer接管
+    private final String consumerName = ManagementFactory.getRuntimeMXBean().getName();
+    //有消息被接管到本消费者名下，处理线程空闲时去处理
+    private final AtomicBoolean pendingClaimed = new AtomicBoolean(true);
+
+    //线程池：一个线程读stream，按userId分给各个分区线程落库
     private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final ScheduledExecutorService SECKILL_CLAIM_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+    //异步秒杀给旧优惠券查库补时间窗口，队列满了直接失败
+    private static final ExecutorService SECKILL_META_EXECUTOR = new ThreadPoolExecutor(
+            SECKILL_META_LOAD_THREADS, SECKILL_META_LOAD_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(SECKILL_META_LOAD_QUEUE));
+    //同一个用户的订单总在同一个分区线程里按顺序处理，一人一单不再需要加锁
+    private static final int ORDER_PARTITIONS = Runtime.getRuntime().availableProcessors();
+    private final ThreadPoolExecutor[] orderPartitions = new ThreadPoolExecutor[ORDER_PARTITIONS];
 
     //在服务启动时就把handler准备好，等待处理任务
     @PostConstruct
     private void init() {
+        createGroupIfAbsent();
+        for (int i = 0; i < ORDER_PARTITIONS; i++) {
+            String name = "seckill-order-" + i;
+            //分区队列满了让读stream的线程等着，不能让调用方自己执行，否则同一个用户会乱序
+            orderPartitions[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(SECKILL_PARTITION_QUEUE),
+                    r -> new Thread(r, name),
+                    (r, executor) -> {
+                        try {
+                            executor.getQueue().put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(e);
+                        }
+                    });
+        }
         SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        SECKILL_CLAIM_EXECUTOR.scheduleWithFixedDelay(this::claimIdlePending,
+                SECKILL_CLAIM_INTERVAL, SECKILL_CLAIM_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        SECKILL_CLAIM_EXECUTOR.shutdownNow();
+        SECKILL_META_EXECUTOR.shutdown();
+        SECKILL_ORDER_EXECUTOR.shutdownNow();
+        for (ThreadPoolExecutor partition : orderPartitions) {
+            partition.shutdown();
+        }
+    }
+
+    //原来的stream和分桶用的分片stream
+    private static final List<String> ORDER_STREAMS = SeckillKeys.streamKeys();
+
+    //stream不存在时一起创建，组已经存在会报BUSYGROUP
+    private void createGroupIfAbsent() {
+        for (String stream : ORDER_STREAMS) {
+            try {
+                stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XGROUP",
+                        "CREATE".getBytes(StandardCharsets.UTF_8),
+                        stream.getBytes(StandardCharsets.UTF_8),
+                        SECKILL_ORDER_GROUP.getBytes(StandardCharsets.UTF_8),
+                        "0".getBytes(StandardCharsets.UTF_8),
+                        "MKSTREAM".getBytes(StandardCharsets.UTF_8)));
+            } catch (Exception e) {
+                if (!String.valueOf(e.getMessage()).contains("BUSYGROUP")) {
+                    throw e;
+                }
+            }
+        }
     }
 
     private class VoucherOrderHandler implements Runnable {
         @Override
         public void run() {
-            while(true){
-                try {//阻塞获取订单+处理订单
-                    //队列为空时线程阻塞，不会占用cpu
-                    //来新订单时自动唤醒
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    //上面只管获取请求，下面只管创建订单
-                    handleVoucherOrder(voucherOrder);
-                } catch (InterruptedException e) {
-                    log.error("处理订单异常");
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    //先处理自己名下还没确认的消息
+                    if (pendingClaimed.getAndSet(false)) {
+                        handlePendingList();
+                    }
+                    //获取消息队列中的订单，攒够一批或者等够时间再落库
+                    List<MapRecord<String, Object, Object>> batch = drainBatch();
+                    if (batch.isEmpty()) {
+                        continue;
+                    }
+                    dispatch(batch, false);
+                } catch (Exception e) {
+                    //没确认的消息留在pending-list，下一轮重新处理
+                    log.error("处理订单异常", e);
+                    pendingClaimed.set(true);
+                    sleepQuietly();
                 }
             }
         }
     }
 
-    //创建rua脚本使用工具，加载Lua脚本
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setResultType(Long.class);
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+    //第一条最多阻塞2秒，之后在SECKILL_BATCH_WAIT内继续读，直到攒够SECKILL_BATCH_SIZE条
+    //XREADGROUP GROUP g1 c1 COUNT n BLOCK t STREAMS stream.orders stream.orders:{0} ... > > ...
+    private List<MapRecord<String, Object, Object>> drainBatch() {
+        List<MapRecord<String, Object, Object>> batch = new ArrayList<>(SECKILL_BATCH_SIZE);
+        List<MapRecord<String, Object, Object>> list = readNew(SECKILL_BATCH_SIZE, Duration.ofSeconds(2));
+        if (list == null || list.isEmpty()) {
+            return batch;
+        }
+        batch.addAll(list);
+        long deadline = System.currentTimeMillis() + SECKILL_BATCH_WAIT;
+        while (batch.size() < SECKILL_BATCH_SIZE) {
+            //block为0会一直阻塞，剩余时间不足1毫秒就不再等
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining < 1) {
+                break;
+            }
+            list = readNew(SECKILL_BATCH_SIZE - batch.size(), Duration.ofMillis(remaining));
+            if (list == null || list.isEmpty()) {
+                break;
+            }
+            batch.addAll(list);
+        }
+        return batch;
     }
 
+    //一次阻塞读所有stream，count对每个stream分别生效
+    @SuppressWarnings("unchecked")
+    private List<MapRecord<String, Object, Object>> readNew(int count, Duration block) {
+        StreamOffset<String>[] offsets = new StreamOffset[ORDER_STREAMS.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = StreamOffset.create(ORDER_STREAMS.get(i), ReadOffset.lastConsumed());
+        }
+        return stringRedisTemplate.opsForStream().read(
+                Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                StreamReadOptions.empty().count(count).block(block),
+                offsets
+        );
+    }
 
+    //处理pending-list里已经投递但没确认的消息 XREADGROUP GROUP g1 c1 COUNT n STREAMS stream.orders 0
+    //分区线程异步确认，按id往后翻页，不会把还在处理中的消息再读一遍
+    private void handlePendingList() {
+        for (String stream : ORDER_STREAMS) {
+            String lastId = "0";
+            while (true) {
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                        StreamReadOptions.empty().count(SECKILL_BATCH_SIZE),
+                        StreamOffset.create(stream, ReadOffset.from(lastId))
+                );
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                dispatch(list, true);
+                lastId = list.get(list.size() - 1).getId().getValue();
+            }
+        }
+    }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        //创建自己的锁对象
-        //SimpleRedisLock lock = new SimpleRedisLock("order:" + userId, stringRedisTemplate);
-        //使用redisson创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        boolean isLock = lock.tryLock();
-        if(!isLock){
-            log.error("不允许重复下单");
-            return;
+    //按userId哈希拆成几个子批次，交给对应的分区线程
+    private void dispatch(List<MapRecord<String, Object, Object>> records, boolean redelivered) {
+        List<List<MapRecord<String, Object, Object>>> parts = new ArrayList<>(ORDER_PARTITIONS);
+        for (int i = 0; i < ORDER_PARTITIONS; i++) {
+            parts.add(new ArrayList<>());
         }
-        //这里使用proxy代理对象，proxy给整个过程启动事务
-        synchronized (userId.toString().intern()) {//进入方法要上锁保证一人一单
-            proxy.createVoucherOrder(voucherOrder);
+        for (MapRecord<String, Object, Object> record : records) {
+            long userId = Long.parseLong(record.getValue().get("userId").toString());
+            parts.get(Math.floorMod(Long.hashCode(userId), ORDER_PARTITIONS)).add(record);
+        }
+        for (int i = 0; i < ORDER_PARTITIONS; i++) {
+            List<MapRecord<String, Object, Object>> part = parts.get(i);
+            if (part.isEmpty()) {
+                continue;
+            }
+            orderPartitions[i].execute(() -> {
+                try {
+                    if (redelivered) {
+                        handleRedelivered(part);
+                    } else {
+                        handleRecords(part);
+                    }
+                } catch (Exception e) {
+                    //没确认的消息留在pending-list，读线程下一轮重新分发
+                    log.error("处理订单异常", e);
+                    pendingClaimed.set(true);
+                }
+            });
+        }
+    }
+
+    /**
+     * 重新投递和从其他节点接管的消息逐条处理，出问题的订单不会拖累整批
+     * 原来的节点可能还没挂、还在处理同一条消息，两边同时落库由唯一索引(user_id, voucher_id)兜底，不需要加锁
+     */
+    private void handleRedelivered(List<MapRecord<String, Object, Object>> records) {
+        for (MapRecord<String, Object, Object> record : records) {
+            handleRecords(Collections.singletonList(record));
         }
     }
 
+    //按优惠券分组，每组一个事务落库，全部成功后一次确认
+    private void handleRecords(List<MapRecord<String, Object, Object>> records) {
+        Map<Long, List<VoucherOrder>> byVoucher = new LinkedHashMap<>();
+        Map<String, List<RecordId>> idsByStream = new LinkedHashMap<>();
+        Map<Long, Object> bucketOf = new HashMap<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            byVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+            bucketOf.put(voucherOrder.getId(), record.getValue().get("bucket"));
+            idsByStream.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+        }
+        //中途失败的话前面已经提交的组会被重新投递，createVoucherOrders会跳过已经存在的订单
+        Map<Long, Long> persisted = new HashMap<>();
+        Map<Long, Long> failed = new HashMap<>();
+        List<String> deadLetters = new ArrayList<>();
+        byVoucher.forEach((voucherId, orders) -> {
+            Map<Long, FailReason> reasons = proxy.createVoucherOrders(voucherId, orders);
+            //事务已经提交，再写订单状态
+            for (VoucherOrder order : orders) {
+                FailReason reason = reasons.get(order.getId());
+                //事务里的快照读看不到并发提交的订单，事务外再读一次，是同一个订单说明重复投递已经落库
+                if (reason == FailReason.DUPLICATE
+                        && order.getId().equals(existingOrderId(order.getUserId(), order.getVoucherId()))) {
+                    reason = null;
+                }
+                if (reason != null) {
+                    failed.put(order.getId(), order.getUserId());
+                    //数据库库存不够的订单不退库存，退回去redis会把这份不存在的库存再卖一次，偏差由对账指标体现
+                    if (reason == FailReason.DUPLICATE) {
+                        deadLetters.add(SeckillStockReconciler.deadLetter(order, bucketOf.get(order.getId())));
+                    }
+                } else {
+                    persisted.put(order.getId(), order.getUserId());
+                }
+            }
+        });
+        orderStatusStore.saveAll(persisted, OrderStatusStore.Status.PERSISTED);
+        orderStatusStore.saveAll(failed, OrderStatusStore.Status.FAILED);
+        //重复下单的订单在redis里多扣了库存，放进死信队列由对账任务退回
+        if (!deadLetters.isEmpty()) {
+            stringRedisTemplate.opsForList().rightPushAll(SECKILL_DLQ_KEY, deadLetters);
+        }
+        //确认消息 XACK stream.orders g1 id...
+        idsByStream.forEach((stream, ids) -> stringRedisTemplate.opsForStream()
+                .acknowledge(stream, SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0])));
+    }
+
+    //把其他消费者太久没确认的消息接管过来，节点挂掉后它的订单由存活的节点处理
+    private void claimIdlePending() {
+        for (String stream : ORDER_STREAMS) {
+            claimIdlePending(stream);
+            removeIdleConsumers(stream);
+        }
+    }
+
+    //按上一页最后一个id往后翻页，pending列表前面是本消费者自己的消息时也能看到后面的
+    private void claimIdlePending(String stream) {
+        try {
+            Duration minIdle = Duration.ofMillis(SECKILL_CLAIM_IDLE);
+            String lastId = null;
+            int claimedCount = 0;
+            while (true) {
+                Range<String> range = lastId == null ? Range.unbounded() : Range.rightUnbounded(Range.Bound.inclusive(lastId));
+                PendingMessages pending = stringRedisTemplate.opsForStream().pending(stream, SECKILL_ORDER_GROUP,
+                        range, (long) SECKILL_CLAIM_BATCH);
+                List<RecordId> ids = new ArrayList<>();
+                int seen = 0;
+                for (PendingMessage message : pending) {
+                    //包含起点，上一页的最后一条跳过
+                    if (message.getIdAsString().equals(lastId)) {
+                        continue;
+                    }
+                    seen++;
+                    if (!consumerName.equals(message.getConsumerName())
+                            && message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0) {
+                        ids.add(message.getId());
+                    }
+                }
+                if (!ids.isEmpty()) {
+                    List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                            connection.xClaimJustId(stream.getBytes(StandardCharsets.UTF_8),
+                                    SECKILL_ORDER_GROUP, consumerName,
+                                    RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(ids)));
+                    claimedCount += claimed == null ? 0 : claimed.size();
+                }
+                if (seen == 0 || pending.size() < SECKILL_CLAIM_BATCH) {
+                    break;
+                }
+                lastId = pending.get(pending.size() - 1).getIdAsString();
+            }
+            if (claimedCount > 0) {
+                log.info("接管了{}条未确认的订单消息", claimedCount);
+                pendingClaimed.set(true);
+            }
+        } catch (Exception e) {
+            log.error("接管未确认的订单消息失败", e);
+        }
+    }
+
+    //节点重启后旧的消费者名字一直留在组里，消息被接管完、空闲足够久的删掉 XGROUP DELCONSUMER
+    private void removeIdleConsumers(String stream) {
+        try {
+            StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(stream, SECKILL_ORDER_GROUP);
+            for (StreamInfo.XInfoConsumer consumer : consumers) {
+                if (!consumerName.equals(consumer.consumerName()) && consumer.pendingCount() == 0
+                        && consumer.idleTimeMs() >= SECKILL_CONSUMER_EXPIRE) {
+                    stringRedisTemplate.opsForStream().deleteConsumer(stream,
+                            Consumer.from(SECKILL_ORDER_GROUP, consumer.consumerName()));
+                    log.info("删除空闲的消费者{}, stream={}", consumer.consumerName(), stream);
+                }
+            }
+        } catch (Exception e) {
+            log.error("清理空闲消费者失败, stream={}", stream, e);
+        }
+    }
+
+    private void sleepQuietly() {
+        try {
+            Thread.sleep(20);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //redis里还没有时间窗口的旧优惠券，从数据库补一次
+    private SeckillMeta seckillMeta(Long voucherId) {
+        SeckillMeta meta = seckillKeys.meta(voucherId);
+        if (meta.hasWindow()) {
+            return meta;
+        }
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null || voucher.getBeginTime() == null || voucher.getEndTime() == null) {
+            //不是秒杀券也写一个不限时间的窗口，避免每次请求都查库，脚本里会因为没有库存返回库存不足
+            return seckillKeys.saveMeta(voucherId, meta.getBuckets(), 0L, Long.MAX_VALUE, meta.getRate());
+        }
+        return seckillKeys.saveMeta(voucherId, meta.getBuckets(),
+                voucher.getBeginTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                voucher.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(), meta.getRate());
+    }
+
     @Override
     @Transactional
     public Result seckillVoucher(Long voucherId) {
+        //布隆过滤器判断优惠券不存在，不用再执行脚本
+        if (!voucherBloomFilter.mightContain(voucherId)) {
+            return Result.fail("优惠券不存在");
+        }
+        long now = System.currentTimeMillis();
+        SeckillMeta meta = seckillMeta(voucherId);
+        Result rejected = preCheck(voucherId, meta, now);
+        if (rejected != null) {
+            return rejected;
+        }
         Long userId = UserHolder.getUser().getId();
-        //执行lua脚本
-        Long result = redisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),userId.toString()
-        );
-        int r = result.intValue();
-        if(r != 0){
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+        long orderId = idGenerator.nextId("order");
+        //执行lua脚本，时间窗口、扣库存和订单写入stream在同一个脚本里完成
+        //分桶时从用户对应的桶开始，桶空了按固定顺序换下一个桶
+        int buckets = meta.getBuckets();
+        int r = 1;
+        for (int bucket : SeckillKeys.walk(userId, buckets)) {
+            Long result = scriptExecutor.execute(RedisScripts.SECKILL, scriptKeys(voucherId, bucket, buckets),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId), String.valueOf(now),
+                    String.valueOf(bucket));
+            r = result.intValue();
+            if (r != 1) {
+                break;
+            }
         }
-        VoucherOrder voucherOrder = new VoucherOrder();
-        long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
-        voucherOrder.setUserId(userId);
-        voucherOrder.setVoucherId(voucherId);
-        orderTasks.add(voucherOrder);
-
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        return Result.ok(orderId);
+        if (r == 0) {
+            orderStatusStore.queued(orderId, userId);
+        }
+        return toResult(voucherId, orderId, r);
 
 
         //        //查优惠券
@@ -158,13 +492,185 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        }
     }
 
+    /**
+     * 异步秒杀：读元数据、生成id和执行脚本都走lettuce的响应式接口，请求线程不用等redis返回
+     * 后续步骤在lettuce的线程里执行，取不到UserHolder，userId由调用方在请求线程里取出来
+     */
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId, Long userId) {
+        //布隆过滤器判断优惠券不存在，不用再执行脚本
+        if (!voucherBloomFilter.mightContain(voucherId)) {
+            return CompletableFuture.completedFuture(Result.fail("优惠券不存在"));
+        }
+        long now = System.currentTimeMillis();
+        return seckillMetaAsync(voucherId).thenCompose(meta -> {
+            Result rejected = preCheck(voucherId, meta, now);
+            if (rejected != null) {
+                return CompletableFuture.completedFuture(rejected);
+            }
+            int[] walk = SeckillKeys.walk(userId, meta.getBuckets());
+            return idGenerator.nextIdAsync("order").thenCompose(orderId ->
+                    executeScriptAsync(voucherId, userId, orderId, now, meta.getBuckets(), walk, 0)
+                            .thenCompose(r -> r == 0
+                                    ? orderStatusStore.queuedAsync(orderId, userId).thenApply(ok -> r)
+                                    : CompletableFuture.completedFuture(r))
+                            .thenApply(r -> toResult(voucherId, orderId, r)));
+        });
+    }
+
+    //redis里还没有时间窗口的旧优惠券要查库，放到有界线程池里，不能阻塞lettuce的线程
+    private CompletableFuture<SeckillMeta> seckillMetaAsync(Long voucherId) {
+        return seckillKeys.metaAsync(voucherId).thenCompose(meta -> meta.hasWindow()
+                ? CompletableFuture.completedFuture(meta)
+                : CompletableFuture.supplyAsync(() -> seckillMeta(voucherId), SECKILL_META_EXECUTOR));
+    }
+
+    //按桶的顺序依次执行，上一个桶空了再执行下一个
+    private CompletableFuture<Integer> executeScriptAsync(Long voucherId, Long userId, long orderId, long now,
+                                                          int buckets, int[] walk, int step) {
+        int bucket = walk[step];
+        return scriptExecutor.executeReactive(RedisScripts.SECKILL, scriptKeys(voucherId, bucket, buckets),
+                        Arrays.asList(voucherId.toString(), userId.toString(), String.valueOf(orderId), String.valueOf(now),
+                                String.valueOf(bucket)))
+                .map(Long::intValue)
+                .toFuture()
+                .thenCompose(r -> r == 1 && step + 1 < walk.length
+                        ? executeScriptAsync(voucherId, userId, orderId, now, buckets, walk, step + 1)
+                        : CompletableFuture.completedFuture(r));
+    }
+
+    //不用访问redis就能拒绝的请求，通过时返回null
+    private Result preCheck(Long voucherId, SeckillMeta meta, long now) {
+        //用本地快照判断秒杀时间，窗口外的请求不访问redis
+        if (meta.notStarted(now)) {
+            return Result.fail("秒杀未开始！");
+        }
+        if (meta.ended(now)) {
+            return Result.fail("秒杀已结束！");
+        }
+        //本节点已知售罄，不用再访问redis
+        if (soldOutFlags.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        return null;
+    }
+
+    private List<String> scriptKeys(Long voucherId, int bucket, int buckets) {
+        return Arrays.asList(SeckillKeys.stockKey(voucherId, bucket, buckets),
+                SeckillKeys.orderKey(voucherId, bucket, buckets),
+                SeckillKeys.streamKey(voucherId, bucket, buckets),
+                SeckillKeys.metaKey(voucherId, bucket, buckets));
+    }
+
+    private Result toResult(Long voucherId, long orderId, int r) {
+        switch (r) {
+            case 0:
+                return Result.ok(orderId);
+            case 1:
+                soldOutFlags.markSoldOut(voucherId);
+                return Result.fail("库存不足");
+            case 2:
+                return Result.fail("不能重复下单");
+            case 3:
+                return Result.fail("秒杀未开始！");
+            default:
+                return Result.fail("秒杀已结束！");
+        }
+    }
+
+    @Override
+    public OrderStatusDTO queryOrderStatus(Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        OrderStatusStore.Status status = orderStatusStore.get(orderId, userId);
+        if (status != null) {
+            return new OrderStatusDTO(orderId, status.name());
+        }
+        //redis里的状态只保留一段时间，更早的订单才查数据库
+        long age = idGenerator.currentSecond() - idGenerator.epochSecondOf(orderId);
+        if (age < ORDER_STATUS_TTL) {
+            return null;
+        }
+        VoucherOrder order = getById(orderId);
+        if (order == null || !order.getUserId().equals(userId)) {
+            return null;
+        }
+        return new OrderStatusDTO(orderId, OrderStatusStore.Status.PERSISTED.name());
+    }
+
+    @Override
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
+    public Map<Long, FailReason> createVoucherOrders(Long voucherId, List<VoucherOrder> orders) {
+        Map<Long, FailReason> failed = new HashMap<>();
+        //一人一单：批内同一个用户只留一条，重复投递已经落库的跳过
+        Map<Long, VoucherOrder> byUser = new LinkedHashMap<>();
+        for (VoucherOrder order : orders) {
+            VoucherOrder kept = byUser.putIfAbsent(order.getUserId(), order);
+            if (kept != null && !kept.getId().equals(order.getId())) {
+                failed.put(order.getId(), FailReason.DUPLICATE);
+            }
+        }
+        List<VoucherOrder> existing = query().select("id", "user_id")
+                .eq("voucher_id", voucherId).in("user_id", byUser.keySet()).list();
+        for (VoucherOrder order : existing) {
+            //同一个订单是重复投递，已经落库；不同订单说明这个用户已经买过
+            VoucherOrder dup = byUser.remove(order.getUserId());
+            if (dup != null && !dup.getId().equals(order.getId())) {
+                failed.put(dup.getId(), FailReason.DUPLICATE);
+            }
+        }
+        if (byUser.isEmpty()) {
+            return failed;
+        }
+        List<VoucherOrder> toCreate = new ArrayList<>(byUser.values());
+        int k = toCreate.size();
+        //整批扣库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - " + k)
+                .eq("voucher_id", voucherId).ge("stock", k)
+                .update();
+        if (!success) {
+            //数据库库存不够整批扣，退回逐条扣减，扣不到的订单不创建
+            log.error("库存不足以整批扣减，逐条处理: voucherId=" + voucherId + ", count=" + k);
+            for (VoucherOrder order : toCreate) {
+                FailReason reason = createVoucherOrder(order);
+                if (reason != null) {
+                    failed.put(order.getId(), reason);
+                }
+            }
+            return failed;
+        }
+        //一条多行INSERT写入
+        try {
+            getBaseMapper().insertBatch(toCreate);
+        } catch (DuplicateKeyException e) {
+            //其他节点或者重新投递的消息在查重之后落了库，唯一索引拦下了整条INSERT，退回整批库存逐条处理
+            log.warn("批量插入订单时唯一索引冲突，逐条处理: voucherId={}", voucherId);
+            seckillVoucherService.update()
+                    .setSql("stock = stock + " + k)
+                    .eq("voucher_id", voucherId)
+                    .update();
+            for (VoucherOrder order : toCreate) {
+                FailReason reason = createVoucherOrder(order);
+                if (reason != null) {
+                    failed.put(order.getId(), reason);
+                }
+            }
+        }
+        return failed;
+    }
+
+    @Transactional
+    public FailReason createVoucherOrder(VoucherOrder voucherOrder) {
         //一人一单
         Long userId = voucherOrder.getUserId();
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        if (count > 0) {
+        Long existingId = existingOrderId(userId, voucherOrder.getVoucherId());
+        if (existingId != null) {
+            //消息重复投递时订单已经存在，当作已经落库
+            if (existingId.equals(voucherOrder.getId())) {
+                return null;
+            }
             log.error("用户已经购买过一次！");
+            return FailReason.DUPLICATE;
         }
 
         //扣库存
@@ -174,8 +680,26 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                 .update();
         if (!success) {
             log.error("库存不足!");
+            return FailReason.SOLD_OUT;
         }
-        //创建订单
-        save(voucherOrder);
+        //创建订单，查重之后其他节点可能已经落库，由唯一索引(user_id, voucher_id)兜底
+        //是不是同一个订单由调用方在事务提交后判断，事务里的快照读看不到冲突的那一行
+        try {
+            save(voucherOrder);
+            return null;
+        } catch (DuplicateKeyException e) {
+            seckillVoucherService.update()
+                    .setSql("stock = stock + 1")
+                    .eq("voucher_id", voucherOrder.getVoucherId())
+                    .update();
+            return FailReason.DUPLICATE;
+        }
+    }
+
+    //普通读，不加锁，加共享锁再插入的两个事务会互相死锁
+    private Long existingOrderId(Long userId, Long voucherId) {
+        VoucherOrder existing = query().select("id")
+                .eq("user_id", userId).eq("voucher_id", voucherId).one();
+        return existing == null ? null : existing.getId();
     }
 }
@@ -7,14 +7,19 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutFlags;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -31,6 +36,12 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisBloomFilter voucherBloomFilter;
+    @Resource
+    private SeckillSoldOutFlags soldOutFlags;
+    @Resource
+    private SeckillKeys seckillKeys;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -52,7 +63,27 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //保存秒杀库存到redis
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        //保存秒杀库存到redis，分桶时每个桶一个key
+        Long voucherId = voucher.getId();
+        int buckets = voucher.getStockBuckets() == null ? 1
+                : Math.max(1, Math.min(voucher.getStockBuckets(), SECKILL_STREAM_SHARDS));
+        int[] stocks = SeckillKeys.split(voucher.getStock(), buckets);
+        for (int i = 0; i < buckets; i++) {
+            stringRedisTemplate.opsForValue().set(SeckillKeys.stockKey(voucherId, i, buckets), String.valueOf(stocks[i]));
+        }
+        if (buckets > 1) {
+            stringRedisTemplate.opsForSet().add(SECKILL_BUCKETED_KEY, voucherId.toString());
+        }
+        //桶数和秒杀时间写进redis，脚本里判断时间窗口
+        seckillKeys.saveMeta(voucherId, buckets, toMillis(voucher.getBeginTime()), toMillis(voucher.getEndTime()),
+                voucher.getAdmissionRate());
+        //加入布隆过滤器
+        voucherBloomFilter.put(voucher.getId());
+        //有库存了，清除各节点的售罄标记
+        soldOutFlags.reset(voucher.getId());
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 }
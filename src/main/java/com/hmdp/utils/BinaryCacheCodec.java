@@ -0,0 +1,339 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制格式
+ * 每个类第一次用到时解析一次字段结构并缓存getter/setter的MethodHandle，之后编解码不再做反射查找
+ * 格式：魔数 | 标志位 | 结构hash | [逻辑过期时间] | 空值位图 | 各字段值
+ * 不是这个格式的数据（比如旧的json）交给fallback解析
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte MAGIC = (byte) 0xB7;
+    private static final int FLAG_LOGICAL = 1;
+    private static final int FLAG_NULL = 2;
+
+    private final CacheCodec fallback;
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    public BinaryCacheCodec(CacheCodec fallback) {
+        this.fallback = fallback;
+    }
+
+    @Override
+    public byte[] encode(Object value, LocalDateTime expireTime) {
+        Schema schema = null;
+        if (value != null) {
+            schema = schemaOf(value.getClass());
+            if (schema == null) {
+                //不支持的类型（集合、没有无参构造等），用json
+                return fallback.encode(value, expireTime);
+            }
+        }
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bos);
+            int flags = (expireTime != null ? FLAG_LOGICAL : 0) | (value == null ? FLAG_NULL : 0);
+            out.writeByte(MAGIC);
+            out.writeByte(flags);
+            if (expireTime != null) {
+                out.writeLong(expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            }
+            if (schema != null) {
+                out.writeInt(schema.hash);
+                schema.write(value, out);
+            }
+            out.flush();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public <R> RedisData decode(byte[] bytes, Class<R> type) {
+        if (bytes[0] != MAGIC) {
+            return fallback.decode(bytes, type);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+            int flags = in.readByte();
+            RedisData redisData = new RedisData();
+            if ((flags & FLAG_LOGICAL) != 0) {
+                redisData.setExpireTime(LocalDateTime.ofInstant(
+                        Instant.ofEpochMilli(in.readLong()), ZoneId.systemDefault()));
+            }
+            if ((flags & FLAG_NULL) != 0) {
+                return redisData;
+            }
+            Schema schema = schemaOf(type);
+            //类的字段变了，旧数据当作不存在
+            if (schema == null || in.readInt() != schema.hash) {
+                return null;
+            }
+            redisData.setData(schema.read(in));
+            return redisData;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Schema schemaOf(Class<?> type) {
+        Schema schema = schemas.get(type);
+        if (schema == null) {
+            schema = Schema.create(type);
+            schemas.put(type, schema);
+        }
+        return schema == Schema.UNSUPPORTED ? null : schema;
+    }
+
+    private enum Kind {
+        LONG, INT, SHORT, BYTE, BOOLEAN, DOUBLE, FLOAT, STRING, LOCAL_DATE_TIME, LOCAL_DATE, BIG_DECIMAL, JSON;
+
+        static Kind of(Class<?> type) {
+            if (type == Long.class || type == long.class) return LONG;
+            if (type == Integer.class || type == int.class) return INT;
+            if (type == Short.class || type == short.class) return SHORT;
+            if (type == Byte.class || type == byte.class) return BYTE;
+            if (type == Boolean.class || type == boolean.class) return BOOLEAN;
+            if (type == Double.class || type == double.class) return DOUBLE;
+            if (type == Float.class || type == float.class) return FLOAT;
+            if (type == String.class) return STRING;
+            if (type == LocalDateTime.class) return LOCAL_DATE_TIME;
+            if (type == LocalDate.class) return LOCAL_DATE;
+            if (type == BigDecimal.class) return BIG_DECIMAL;
+            return JSON;
+        }
+    }
+
+    private static class Property {
+        final Kind kind;
+        final Type genericType;
+        final MethodHandle getter;
+        final MethodHandle setter;
+
+        Property(Field field) throws IllegalAccessException {
+            field.setAccessible(true);
+            this.kind = Kind.of(field.getType());
+            this.genericType = field.getGenericType();
+            this.getter = MethodHandles.lookup().unreflectGetter(field);
+            this.setter = MethodHandles.lookup().unreflectSetter(field);
+        }
+    }
+
+    private static class Schema {
+        static final Schema UNSUPPORTED = new Schema(null, null, 0);
+
+        final MethodHandle constructor;
+        final Property[] properties;
+        final int hash;
+
+        Schema(MethodHandle constructor, Property[] properties, int hash) {
+            this.constructor = constructor;
+            this.properties = properties;
+            this.hash = hash;
+        }
+
+        static Schema create(Class<?> type) {
+            if (type.isInterface() || type.isArray() || type.isPrimitive()
+                    || Modifier.isAbstract(type.getModifiers()) || Kind.of(type) != Kind.JSON) {
+                return UNSUPPORTED;
+            }
+            try {
+                Constructor<?> ctor = type.getDeclaredConstructor();
+                ctor.setAccessible(true);
+                List<Field> fields = new ArrayList<>();
+                for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                    for (Field field : c.getDeclaredFields()) {
+                        int mod = field.getModifiers();
+                        if (!Modifier.isStatic(mod) && !Modifier.isTransient(mod)) {
+                            fields.add(field);
+                        }
+                    }
+                }
+                //按字段名排序，字段声明顺序变化不影响格式
+                fields.sort(Comparator.comparing(Field::getName));
+                StringBuilder signature = new StringBuilder(type.getName());
+                Property[] properties = new Property[fields.size()];
+                for (int i = 0; i < properties.length; i++) {
+                    Field field = fields.get(i);
+                    properties[i] = new Property(field);
+                    signature.append(';').append(field.getName()).append(':').append(field.getType().getName());
+                }
+                return new Schema(MethodHandles.lookup().unreflectConstructor(ctor), properties, signature.toString().hashCode());
+            } catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+                return UNSUPPORTED;
+            }
+        }
+
+        void write(Object bean, DataOutputStream out) throws IOException {
+            Object[] values = new Object[properties.length];
+            byte[] nullBits = new byte[(properties.length + 7) >>> 3];
+            try {
+                for (int i = 0; i < properties.length; i++) {
+                    values[i] = properties[i].getter.invoke(bean);
+                    if (values[i] == null) {
+                        nullBits[i >>> 3] |= 1 << (i & 7);
+                    }
+                }
+            } catch (Throwable e) {
+                throw new IOException(e);
+            }
+            out.write(nullBits);
+            for (int i = 0; i < properties.length; i++) {
+                if (values[i] != null) {
+                    writeValue(properties[i].kind, values[i], out);
+                }
+            }
+        }
+
+        Object read(DataInputStream in) throws IOException {
+            byte[] nullBits = new byte[(properties.length + 7) >>> 3];
+            in.readFully(nullBits);
+            try {
+                Object bean = constructor.invoke();
+                for (int i = 0; i < properties.length; i++) {
+                    if ((nullBits[i >>> 3] & (1 << (i & 7))) == 0) {
+                        properties[i].setter.invoke(bean, readValue(properties[i], in));
+                    }
+                }
+                return bean;
+            } catch (IOException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private static void writeValue(Kind kind, Object value, DataOutputStream out) throws IOException {
+        switch (kind) {
+            case LONG:
+                writeVarLong(out, (Long) value);
+                break;
+            case INT:
+                writeVarLong(out, (Integer) value);
+                break;
+            case SHORT:
+                writeVarLong(out, (Short) value);
+                break;
+            case BYTE:
+                out.writeByte((Byte) value);
+                break;
+            case BOOLEAN:
+                out.writeBoolean((Boolean) value);
+                break;
+            case DOUBLE:
+                out.writeDouble((Double) value);
+                break;
+            case FLOAT:
+                out.writeFloat((Float) value);
+                break;
+            case STRING:
+                writeString(out, (String) value);
+                break;
+            case LOCAL_DATE_TIME:
+                LocalDateTime time = (LocalDateTime) value;
+                writeVarLong(out, time.toEpochSecond(ZoneOffset.UTC));
+                writeVarLong(out, time.getNano());
+                break;
+            case LOCAL_DATE:
+                writeVarLong(out, ((LocalDate) value).toEpochDay());
+                break;
+            case BIG_DECIMAL:
+                writeString(out, value.toString());
+                break;
+            default:
+                writeString(out, JSONUtil.toJsonStr(value));
+        }
+    }
+
+    private static Object readValue(Property property, DataInputStream in) throws IOException {
+        switch (property.kind) {
+            case LONG:
+                return readVarLong(in);
+            case INT:
+                return (int) readVarLong(in);
+            case SHORT:
+                return (short) readVarLong(in);
+            case BYTE:
+                return in.readByte();
+            case BOOLEAN:
+                return in.readBoolean();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case STRING:
+                return readString(in);
+            case LOCAL_DATE_TIME:
+                long second = readVarLong(in);
+                return LocalDateTime.ofEpochSecond(second, (int) readVarLong(in), ZoneOffset.UTC);
+            case LOCAL_DATE:
+                return LocalDate.ofEpochDay(readVarLong(in));
+            case BIG_DECIMAL:
+                return new BigDecimal(readString(in));
+            default:
+                return JSONUtil.toBean(readString(in), property.genericType, false);
+        }
+    }
+
+    //zigzag + varint，小数字只占1~2个字节
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("varint too long");
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,20 @@
+package com.hmdp.utils;
+
+import java.util.function.BiConsumer;
+
+/**
+ * 数据变更来源，可以是本地发件箱表，也可以接binlog
+ */
+public interface CacheChangeSource {
+
+    /**
+     * 开始接收变更，每条变更是变更id和一个需要失效的缓存key，同一个key的变更按提交顺序交给listener
+     * listener处理完后调用ack确认，没有确认的变更超时后会重新投递
+     */
+    void subscribe(BiConsumer<Long, String> listener);
+
+    /**
+     * 确认变更已经处理完，来源可以丢弃它
+     */
+    void ack(Long changeId);
+}
@@ -1,29 +1,60 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
-import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
-import static com.hmdp.utils.RedisConstants.LOCK_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
+@Component
 public class CacheClient {
     private final StringRedisTemplate redisTemplate;
+    //缓存值按byte[]读写，由codec负责序列化
+    private final RedisTemplate<String, byte[]> byteRedisTemplate;
+    private final CacheCodec codec;
+    //过期时间加随机抖动
+    private final TtlPolicy ttlPolicy;
 
-    //开线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    //空值缓存
+    private static final byte[] EMPTY = new byte[0];
+
+    //本地一级缓存，按容量LRU淘汰，写入后CACHE_LOCAL_TTL毫秒过期，redis作为二级缓存
+    //存codec编码后的字节，每次读取解码出新对象，调用方修改返回的对象不会影响缓存
+    private final LRUCache<String, byte[]> localCache = CacheUtil.newLRUCache(CACHE_LOCAL_CAPACITY, CACHE_LOCAL_TTL);
+
+    //按key前缀注册的布隆过滤器，查redis和数据库之前先判断id是否可能存在
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    //本节点内合并同一个key的并发加载
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    //有界的重建线程池，同时负责热点key的提前刷新
+    private final CacheRefresher cacheRefresher;
 
     //加锁
     private boolean tryLock(String key){
-        Boolean flag = redisTemplate.opsForValue().setIfAbsent(key,"1",10,TimeUnit.SECONDS);
+        Boolean flag = redisTemplate.opsForValue().setIfAbsent(key,"1",LOCK_SHOP_TTL,TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
     }
 
@@ -32,93 +63,650 @@ public class CacheClient {
         redisTemplate.delete(key);
     }
 
-    public CacheClient(StringRedisTemplate redisTemplate) {
+    //query选择的策略和各策略的命中、未命中、重建次数
+    private final Map<CacheStrategy, StrategyMeters> strategyMeters = new EnumMap<>(CacheStrategy.class);
+
+    //每个key前缀查库耗时的指数移动平均
+    private final Map<String, RebuildCost> rebuildCosts = new ConcurrentHashMap<>();
+
+    private static class StrategyMeters {
+        final Counter decision;
+        final Counter hit;
+        final Counter miss;
+        final Counter rebuild;
+
+        StrategyMeters(MeterRegistry meterRegistry, CacheStrategy strategy) {
+            String tag = strategy.name().toLowerCase();
+            this.decision = meterRegistry.counter("cache.strategy.decision", "strategy", tag);
+            this.hit = meterRegistry.counter("cache.strategy.requests", "strategy", tag, "result", "hit");
+            this.miss = meterRegistry.counter("cache.strategy.requests", "strategy", tag, "result", "miss");
+            this.rebuild = meterRegistry.counter("cache.strategy.rebuild", "strategy", tag);
+        }
+    }
+
+    private static class RebuildCost {
+        //新样本权重0.2
+        private static final double ALPHA = 0.2;
+        private volatile double average = -1;
+
+        synchronized void record(long millis) {
+            average = average < 0 ? millis : average + ALPHA * (millis - average);
+        }
+
+        double average() {
+            return average;
+        }
+    }
+
+    public CacheClient(StringRedisTemplate redisTemplate, RedisTemplate<String, byte[]> byteRedisTemplate,
+                       CacheCodec codec, CacheRefresher cacheRefresher, TtlPolicy ttlPolicy, MeterRegistry meterRegistry) {
         this.redisTemplate = redisTemplate;
+        this.byteRedisTemplate = byteRedisTemplate;
+        this.codec = codec;
+        this.ttlPolicy = ttlPolicy;
+        this.cacheRefresher = cacheRefresher;
+        for (CacheStrategy strategy : CacheStrategy.values()) {
+            strategyMeters.put(strategy, new StrategyMeters(meterRegistry, strategy));
+        }
+    }
+
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    //布隆过滤器判断一定不存在时返回false
+    private boolean mightExist(String keyPrefix, Object id) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter == null || bloomFilter.mightContain(id);
+    }
+
+    //从本地缓存取值，类型不符或已过期都当作未命中
+    private <R> RedisData getLocal(String key, Class<R> type) {
+        //不刷新访问时间，保证写入后固定时间过期
+        byte[] bytes = localCache.get(key, false);
+        if (bytes == null) {
+            return null;
+        }
+        RedisData redisData = codec.decode(bytes, type);
+        if (redisData == null || !type.isInstance(redisData.getData())) {
+            return null;
+        }
+        return redisData;
+    }
+
+    private void putLocal(String key, Object value, LocalDateTime expireTime) {
+        localCache.put(key, codec.encode(value, expireTime));
+    }
+
+    //只清理本节点的本地缓存，收到失效广播时调用
+    public void evictLocal(String key) {
+        localCache.remove(key);
+    }
+
+    //删除缓存，并广播给其他节点清理本地缓存
+    public void delete(String key) {
+        redisTemplate.delete(key);
+        evictLocalEverywhere(key);
+    }
+
+    //redis里已经是新值时只需要清理各节点的本地缓存
+    public void evictLocalEverywhere(String key) {
+        evictLocal(key);
+        redisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
     }
 
     //互斥锁方式设置redis
     public void set(String key, Object value,Long time, TimeUnit timeUnit) {
-        redisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        long seconds = ttlPolicy.ttlSeconds(key, timeUnit.toSeconds(time));
+        byte[] bytes = codec.encode(value, null);
+        byteRedisTemplate.opsForValue().set(key, bytes, seconds, TimeUnit.SECONDS);
+        localCache.put(key, bytes);
     }
 
     //设置逻辑过期
     public void setLogicalExpire(String key, Object value,Long time, TimeUnit timeUnit) {
         //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
+        LocalDateTime expireTime = ttlPolicy.logicalExpireTime(key, timeUnit.toSeconds(time));
         //写入redis
-        redisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        byte[] bytes = codec.encode(value, expireTime);
+        byteRedisTemplate.opsForValue().set(key, bytes);
+        localCache.put(key, bytes);
+    }
+
+    /**
+     * 数据变更后按query会选的格式写回：热点key写逻辑过期，其余写带TTL的格式
+     * 不计入访问次数；查不到数据时直接删除，由下一次查询决定怎么缓存
+     */
+    public void refresh(String key, Object value, Long time, TimeUnit timeUnit) {
+        if (value == null) {
+            delete(key);
+            return;
+        }
+        if (cacheRefresher.estimate(key) >= REFRESH_HOT_THRESHOLD) {
+            setLogicalExpire(key, value, time, timeUnit);
+        } else {
+            set(key, value, time, timeUnit);
+        }
+        evictLocalEverywhere(key);
+    }
+
+    //批量设置逻辑过期，一次pipeline写完
+    public void setLogicalExpireBatch(Map<String, ?> values, Long time, TimeUnit timeUnit) {
+        Map<String, LocalDateTime> expireTimes = writeLogicalBatch(values, time, timeUnit);
+        values.forEach((key, value) -> putLocal(key, value, expireTimes.get(key)));
+    }
+
+    //批量预热，只写redis，不占用本地缓存
+    //预热时还没有访问统计，和query对冷key的处理一样写带TTL的格式，每个key的TTL单独抖动
+    public void preload(Map<String, ?> values, Long time, TimeUnit timeUnit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long seconds = timeUnit.toSeconds(time);
+        byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((key, value) -> connection.setEx(key.getBytes(StandardCharsets.UTF_8),
+                    ttlPolicy.ttlSeconds(key, seconds), codec.encode(value, null)));
+            return null;
+        });
+    }
+
+    //每个key单独计算逻辑过期时间，同一批写入的key不会同时过期
+    private Map<String, LocalDateTime> writeLogicalBatch(Map<String, ?> values, Long time, TimeUnit timeUnit) {
+        if (values.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        long seconds = timeUnit.toSeconds(time);
+        Map<String, LocalDateTime> expireTimes = new LinkedHashMap<>(values.size() * 4 / 3 + 1);
+        Map<String, byte[]> encoded = new LinkedHashMap<>(values.size() * 4 / 3 + 1);
+        values.forEach((key, value) -> {
+            LocalDateTime expireTime = ttlPolicy.logicalExpireTime(key, seconds);
+            expireTimes.put(key, expireTime);
+            encoded.put(key, codec.encode(value, expireTime));
+        });
+        byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            encoded.forEach((key, bytes) -> connection.set(key.getBytes(StandardCharsets.UTF_8), bytes));
+            return null;
+        });
+        return expireTimes;
     }
 
     //缓存穿透解决方法
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time, TimeUnit timeUnit) {
+        //布隆过滤器判断不存在，直接返回
+        if(!mightExist(keyPrefix, id)){
+            return null;
+        }
         String key = keyPrefix + id;
+        //先查本地缓存
+        RedisData local = getLocal(key, type);
+        if(local != null && isFresh(local)){
+            return type.cast(local.getData());
+        }
         //从redis查商铺缓存
-        String json = redisTemplate.opsForValue().get(key);
-        //判断是否存在
-        if(StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json,type);
+        RedisData cached = readFresh(key, type);
+        if(cached != null){
+            return type.cast(cached.getData());
+        }
+        //不存在，根据id查数据库，本节点同一个key只有一个线程查库
+        return singleFlight.execute(key, () -> loadAndCache(key, id, dbFallback, time, timeUnit));
+    }
+
+    //互斥锁解决缓存击穿：本节点内用singleFlight合并请求，跨节点才用redis锁
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time, TimeUnit timeUnit) {
+        //布隆过滤器判断不存在，直接返回
+        if(!mightExist(keyPrefix, id)){
+            return null;
+        }
+        String key = keyPrefix + id;
+        RedisData local = getLocal(key, type);
+        if(local != null && isFresh(local)){
+            return type.cast(local.getData());
+        }
+        RedisData cached = readFresh(key, type);
+        if(cached != null){
+            return type.cast(cached.getData());
+        }
+        return singleFlight.execute(key, () -> loadWithLock(key, id, type, dbFallback, time, timeUnit));
+    }
+
+    //拿到redis锁再查库，等锁期间其他节点写好了就直接用
+    private <R,ID> R loadWithLock(String key, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit timeUnit) {
+        String lockKey = LOCK_SHOP_KEY + id;
+        //等其他节点重建的最长时间，超过了就自己查库
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LOCK_SHOP_TTL);
+        long backoff = 5;
+        while (!tryLock(lockKey)) {
+            if (System.currentTimeMillis() >= deadline) {
+                return loadAndCache(key, id, dbFallback, time, timeUnit);
+            }
+            //其他节点在重建，每个节点只有一个线程在这里等
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            backoff = Math.min(backoff * 2, 100);
+            RedisData rebuilt = readFresh(key, type);
+            if (rebuilt != null) {
+                return type.cast(rebuilt.getData());
+            }
+        }
+        try {
+            //拿到锁后再查一次redis，可能刚被其他节点写好
+            RedisData rebuilt = readFresh(key, type);
+            if (rebuilt != null) {
+                return type.cast(rebuilt.getData());
+            }
+            return loadAndCache(key, id, dbFallback, time, timeUnit);
+        } finally {
+            unlock(lockKey);
+        }
+    }
+
+    //读redis，返回null表示未命中，data为null表示命中空值
+    private <R> RedisData readCache(String key, Class<R> type) {
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
+        if(bytes == null){
+            return null;
         }
         //判断命中是否为空
-        if(json != null){
+        if(bytes.length == 0){
+            return new RedisData();
+        }
+        //解析不了的旧数据当作不存在
+        RedisData redisData = codec.decode(bytes, type);
+        if(redisData == null || redisData.getData() == null){
             return null;
         }
+        putLocal(key, redisData.getData(), redisData.getExpireTime());
+        return redisData;
+    }
 
-        //不存在，根据id查数据库
-        R r = dbFallback.apply(id);
+    //只认没过期的数据，逻辑过期格式过期了当作未命中
+    private <R> RedisData readFresh(String key, Class<R> type) {
+        RedisData redisData = readCache(key, type);
+        return redisData != null && isFresh(redisData) ? redisData : null;
+    }
 
+    //普通格式没有过期时间，由redis的TTL负责过期
+    private boolean isFresh(RedisData redisData) {
+        return redisData.getExpireTime() == null || redisData.getExpireTime().isAfter(LocalDateTime.now());
+    }
+
+    //查数据库并写缓存，不存在的写空值
+    private <R,ID> R loadAndCache(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit timeUnit) {
+        R r = dbFallback.apply(id);
         //不存在，返回结果
         if(r == null) {
-            redisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.SECONDS);
+            byteRedisTemplate.opsForValue().set(key, EMPTY, ttlPolicy.ttlSeconds(key, CACHE_NULL_TTL), TimeUnit.SECONDS);
             return null;
         }
         //存在，写进redis
         this.set(key, r, time, timeUnit);
-
         return r;
     }
 
     //解决缓存击穿
     public <R,ID> R queryWithLogicalExpire(String keyPrefix,ID id,Class<R> type, Function<ID,R> dbFallback,Long time, TimeUnit timeUnit) {
+        //布隆过滤器判断不存在，直接返回
+        if(!mightExist(keyPrefix, id)){
+            return null;
+        }
         String key = keyPrefix + id;
+        String lockKey = LOCK_SHOP_KEY + id;
+        cacheRefresher.countAccess(key);
+        //先查本地缓存，逻辑上没过期就直接返回，过期了走redis流程触发重建
+        RedisData local = getLocal(key, type);
+        if(local != null && local.getExpireTime() != null && local.getExpireTime().isAfter(LocalDateTime.now())){
+            recordAccess(key, lockKey, id, dbFallback, local.getExpireTime(), time, timeUnit);
+            return type.cast(local.getData());
+        }
         //从redis查询商铺缓存
-        String json = redisTemplate.opsForValue().get(key);
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
         //判断是否存在
-        if(StrUtil.isBlank(json)){
+        if(bytes == null || bytes.length == 0){
             //不存在，直接null
             return null;
         }
-        //存在，要返回json，json要转化为对象，要反序列化
-        RedisData redisData = JSONUtil.toBean(json,RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        //存在，反序列化，codec一次解析出逻辑过期时间和对象
+        RedisData redisData = codec.decode(bytes, type);
+        if(redisData == null || redisData.getExpireTime() == null){
+            //数据结构变了或者不是逻辑过期格式，同步重建一次
+            return singleFlight.execute(key, () -> loadLogical(key, id, dbFallback, time, timeUnit));
+        }
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
         //判断有没有过期
         if(expireTime.isAfter(LocalDateTime.now())) {
-            //没有过期，直接返回redis中的结果
+            //没有过期，放入本地缓存，直接返回redis中的结果
+            putLocal(key, r, expireTime);
+            recordAccess(key, lockKey, id, dbFallback, expireTime, time, timeUnit);
             return r;
         }
         //过期，要缓存重建
-        String lockKey = LOCK_SHOP_KEY + id;
         //拿到锁，使用redis客户端的setIfAbsent方法来实现类似锁机制
         //setIfAbsent其实就是setnx命令，有key就不给入，无key就会创建，实际上这个key就是个锁标识
         //setnx命令是原子性操作，不会被其他线程打断，同时设置了10秒TTL
+        rebuildInBackground(key, lockKey, id, dbFallback, time, timeUnit);
+        return r;
+    }
+
+    private <R,ID> R loadLogical(String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit timeUnit) {
+        R r = dbFallback.apply(id);
+        this.setLogicalExpire(key, r, time, timeUnit);
+        return r;
+    }
+
+    //抢到锁的请求把重建交给线程池，自己返回旧值
+    private <R,ID> void rebuildInBackground(String key, String lockKey, ID id, Function<ID,R> dbFallback, Long time, TimeUnit timeUnit) {
         boolean isLock = tryLock(lockKey);
         if(isLock){
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    //查数据库
-                    R r1 = dbFallback.apply(id);
-                    //存redis
-                    this.setLogicalExpire(key, r1, time, timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    //释放锁
-                    unlock(key);
+            boolean accepted = cacheRefresher.submit(() -> rebuildLogical(key, lockKey, id, dbFallback, time, timeUnit));
+            if(!accepted){
+                //线程池满了，释放锁让后面的请求再试
+                unlock(lockKey);
+            }
+        }
+    }
+
+    /**
+     * 按key自动选择策略：热点用逻辑过期，访问较多或重建慢的用互斥锁，其余直接设TTL
+     * 同一个key在不同策略之间切换时redis里可能是另一种格式，两种格式都能读
+     */
+    public <R,ID> R query(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit timeUnit) {
+        if(!mightExist(keyPrefix, id)){
+            return null;
+        }
+        String key = keyPrefix + id;
+        CacheStrategy strategy = chooseStrategy(keyPrefix, key);
+        StrategyMeters meters = strategyMeters.get(strategy);
+        meters.decision.increment();
+        //记录查库耗时，作为这个前缀的重建代价
+        Function<ID,R> timedFallback = i -> {
+            meters.rebuild.increment();
+            long begin = System.nanoTime();
+            try {
+                return dbFallback.apply(i);
+            } finally {
+                rebuildCosts.computeIfAbsent(keyPrefix, p -> new RebuildCost())
+                        .record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+            }
+        };
+        String lockKey = LOCK_SHOP_KEY + id;
+        RedisData local = getLocal(key, type);
+        if(local != null && isFresh(local)){
+            meters.hit.increment();
+            if(local.getExpireTime() != null){
+                recordAccess(key, lockKey, id, timedFallback, local.getExpireTime(), time, timeUnit);
+            }
+            return type.cast(local.getData());
+        }
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
+        //空值
+        if(bytes != null && bytes.length == 0){
+            meters.hit.increment();
+            return null;
+        }
+        RedisData cached = bytes == null ? null : codec.decode(bytes, type);
+        if(cached != null && (cached.getData() != null || cached.getExpireTime() != null)){
+            R r = type.cast(cached.getData());
+            if(isFresh(cached)){
+                meters.hit.increment();
+                putLocal(key, r, cached.getExpireTime());
+                if(cached.getExpireTime() != null){
+                    recordAccess(key, lockKey, id, timedFallback, cached.getExpireTime(), time, timeUnit);
+                }
+                return r;
+            }
+            //逻辑过期了，热点key先返回旧值；已经不热的key同步查库，改成带TTL的格式
+            if(strategy == CacheStrategy.LOGICAL_EXPIRE){
+                meters.hit.increment();
+                rebuildInBackground(key, lockKey, id, timedFallback, time, timeUnit);
+                return r;
+            }
+        }
+        meters.miss.increment();
+        switch (strategy) {
+            case LOGICAL_EXPIRE:
+                return singleFlight.execute(key, () -> loadLogical(key, id, timedFallback, time, timeUnit));
+            case MUTEX:
+                return singleFlight.execute(key, () -> loadWithLock(key, id, type, timedFallback, time, timeUnit));
+            default:
+                return singleFlight.execute(key, () -> loadAndCache(key, id, timedFallback, time, timeUnit));
+        }
+    }
+
+    private CacheStrategy chooseStrategy(String keyPrefix, String key) {
+        //不管缓存里是哪种格式，每次读都在这里计数一次
+        int count = cacheRefresher.countAccess(key);
+        if(count >= REFRESH_HOT_THRESHOLD){
+            return CacheStrategy.LOGICAL_EXPIRE;
+        }
+        RebuildCost cost = rebuildCosts.get(keyPrefix);
+        if(count >= CACHE_STRATEGY_WARM_THRESHOLD || (cost != null && cost.average() >= CACHE_STRATEGY_EXPENSIVE_MILLIS)){
+            return CacheStrategy.MUTEX;
+        }
+        return CacheStrategy.PASS_THROUGH;
+    }
+
+    //统计访问频率，热点key快过期时由cacheRefresher提前重建
+    private <R,ID> void recordAccess(String key, String lockKey, ID id, Function<ID,R> dbFallback,
+                                     LocalDateTime expireTime, Long time, TimeUnit timeUnit) {
+        cacheRefresher.recordAccess(key, expireTime, () -> {
+            //其他节点已经在重建就跳过
+            if(tryLock(lockKey)){
+                rebuildLogical(key, lockKey, id, dbFallback, time, timeUnit);
+            }
+        });
+    }
+
+    //查数据库重建逻辑过期缓存，调用前要拿到锁
+    private <R,ID> void rebuildLogical(String key, String lockKey, ID id, Function<ID,R> dbFallback, Long time, TimeUnit timeUnit) {
+        try {
+            //查数据库
+            R r1 = dbFallback.apply(id);
+            //存redis
+            this.setLogicalExpire(key, r1, time, timeUnit);
+        } finally {
+            //释放锁
+            unlock(lockKey);
+        }
+    }
+
+    //批量查询，缓存穿透：一次MGET查redis，未命中的一次性查数据库，再用一次pipeline写回
+    //返回的map只包含存在的数据，顺序和ids一致
+    public <R,ID> Map<ID,R> queryManyWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                     Function<Collection<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit timeUnit) {
+        Map<ID,R> result = new LinkedHashMap<>(ids.size() * 4 / 3 + 1);
+        //先查本地缓存，剩下的去redis
+        List<ID> remaining = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            if (!mightExist(keyPrefix, id)) {
+                continue;
+            }
+            RedisData local = getLocal(keyPrefix + id, type);
+            if (local != null) {
+                result.put(id, type.cast(local.getData()));
+            } else {
+                remaining.add(id);
+            }
+        }
+        if (remaining.isEmpty()) {
+            return result;
+        }
+        List<byte[]> values = multiGet(keyPrefix, remaining);
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < remaining.size(); i++) {
+            ID id = remaining.get(i);
+            byte[] bytes = values.get(i);
+            //命中空值
+            if (bytes != null && bytes.length == 0) {
+                continue;
+            }
+            RedisData redisData = bytes == null ? null : codec.decode(bytes, type);
+            if (redisData != null && redisData.getData() != null) {
+                R r = type.cast(redisData.getData());
+                putLocal(keyPrefix + id, r, null);
+                result.put(id, r);
+            } else {
+                misses.add(id);
+            }
+        }
+        if (misses.isEmpty()) {
+            return orderBy(ids, result);
+        }
+        //未命中的批量查数据库
+        Map<ID,R> loaded = loadMany(misses, dbFallback);
+        long seconds = timeUnit.toSeconds(time);
+        //不存在的写空值，存在的正常写入，一次pipeline
+        byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : misses) {
+                String key = keyPrefix + id;
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                R r = loaded.get(id);
+                if (r == null) {
+                    connection.setEx(rawKey, ttlPolicy.ttlSeconds(key, CACHE_NULL_TTL), EMPTY);
+                } else {
+                    connection.setEx(rawKey, ttlPolicy.ttlSeconds(key, seconds), codec.encode(r, null));
                 }
+            }
+            return null;
+        });
+        for (ID id : misses) {
+            R r = loaded.get(id);
+            if (r != null) {
+                putLocal(keyPrefix + id, r, null);
+                result.put(id, r);
+            }
+        }
+        return orderBy(ids, result);
+    }
+
+    //批量查询，逻辑过期：过期的数据先返回旧值，拿到锁的一批id交给一个线程批量重建
+    public <R,ID> Map<ID,R> queryManyWithLogicalExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                       Function<Collection<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit timeUnit) {
+        Map<ID,R> result = new LinkedHashMap<>(ids.size() * 4 / 3 + 1);
+        LocalDateTime now = LocalDateTime.now();
+        List<ID> remaining = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            if (!mightExist(keyPrefix, id)) {
+                continue;
+            }
+            RedisData local = getLocal(keyPrefix + id, type);
+            if (local != null && local.getExpireTime() != null && local.getExpireTime().isAfter(now)) {
+                result.put(id, type.cast(local.getData()));
+            } else {
+                remaining.add(id);
+            }
+        }
+        if (remaining.isEmpty()) {
+            return result;
+        }
+        List<byte[]> values = multiGet(keyPrefix, remaining);
+        List<ID> expired = new ArrayList<>();
+        List<ID> broken = new ArrayList<>();
+        for (int i = 0; i < remaining.size(); i++) {
+            ID id = remaining.get(i);
+            byte[] bytes = values.get(i);
+            //不存在，和单个查询一样直接当作null
+            if (bytes == null || bytes.length == 0) {
+                continue;
+            }
+            RedisData redisData = codec.decode(bytes, type);
+            if (redisData == null || redisData.getExpireTime() == null) {
+                broken.add(id);
+                continue;
+            }
+            R r = type.cast(redisData.getData());
+            if (r != null) {
+                result.put(id, r);
+            }
+            if (redisData.getExpireTime().isAfter(now)) {
+                putLocal(keyPrefix + id, r, redisData.getExpireTime());
+            } else {
+                expired.add(id);
+            }
+        }
+        //解析不了的同步重建
+        if (!broken.isEmpty()) {
+            Map<ID,R> loaded = loadMany(broken, dbFallback);
+            Map<String,R> rebuild = new LinkedHashMap<>();
+            for (ID id : broken) {
+                R r = loaded.get(id);
+                rebuild.put(keyPrefix + id, r);
+                if (r != null) {
+                    result.put(id, r);
+                }
+            }
+            setLogicalExpireBatch(rebuild, time, timeUnit);
+        }
+        //过期的批量抢锁，一次pipeline
+        if (!expired.isEmpty()) {
+            List<String> lockKeys = new ArrayList<>(expired.size());
+            for (ID id : expired) {
+                lockKeys.add(LOCK_SHOP_KEY + id);
+            }
+            List<Object> locked = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String lockKey : lockKeys) {
+                    connection.set(lockKey.getBytes(StandardCharsets.UTF_8), "1".getBytes(StandardCharsets.UTF_8),
+                            Expiration.seconds(LOCK_SHOP_TTL), RedisStringCommands.SetOption.ifAbsent());
+                }
+                return null;
             });
+            List<ID> rebuildIds = new ArrayList<>();
+            List<String> heldLocks = new ArrayList<>();
+            for (int i = 0; i < expired.size(); i++) {
+                if (Boolean.TRUE.equals(locked.get(i))) {
+                    rebuildIds.add(expired.get(i));
+                    heldLocks.add(lockKeys.get(i));
+                }
+            }
+            if (!rebuildIds.isEmpty()) {
+                boolean accepted = cacheRefresher.submit(() -> {
+                    try {
+                        Map<ID,R> loaded = loadMany(rebuildIds, dbFallback);
+                        Map<String,R> rebuild = new LinkedHashMap<>();
+                        for (ID id : rebuildIds) {
+                            rebuild.put(keyPrefix + id, loaded.get(id));
+                        }
+                        this.setLogicalExpireBatch(rebuild, time, timeUnit);
+                    } finally {
+                        redisTemplate.delete(heldLocks);
+                    }
+                });
+                if (!accepted) {
+                    redisTemplate.delete(heldLocks);
+                }
+            }
         }
-        return r;
+        return orderBy(ids, result);
+    }
+
+    private <ID> List<byte[]> multiGet(String keyPrefix, List<ID> ids) {
+        List<String> keys = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            keys.add(keyPrefix + id);
+        }
+        List<byte[]> values = byteRedisTemplate.opsForValue().multiGet(keys);
+        //pipeline/事务中会返回null
+        return values == null ? Collections.nCopies(keys.size(), null) : values;
+    }
+
+    private <R,ID> Map<ID,R> loadMany(Collection<ID> ids, Function<Collection<ID>, Map<ID,R>> dbFallback) {
+        Map<ID,R> loaded = dbFallback.apply(ids);
+        return loaded == null ? Collections.emptyMap() : loaded;
+    }
+
+    //按请求的id顺序重新排列
+    private <R,ID> Map<ID,R> orderBy(Collection<ID> ids, Map<ID,R> found) {
+        Map<ID,R> ordered = new LinkedHashMap<>(found.size() * 4 / 3 + 1);
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                ordered.put(id, r);
+            }
+        }
+        return ordered;
     }
 }
@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+
+/**
+ * 缓存值的序列化方式，CacheClient通过它读写redis中的byte[]
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码缓存值
+     * @param value 缓存的对象，可以为null
+     * @param expireTime 逻辑过期时间，普通缓存传null
+     * @return 写入redis的字节
+     */
+    byte[] encode(Object value, LocalDateTime expireTime);
+
+    /**
+     * 解码缓存值
+     * @param bytes redis中的字节，不能为空数组
+     * @param type 缓存对象的类型
+     * @return data为type类型的对象，普通缓存的expireTime为null；数据结构已变化无法解析时返回null
+     */
+    <R> RedisData decode(byte[] bytes, Class<R> type);
+}
@@ -0,0 +1,104 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.CACHE_DOUBLE_DELETE_DELAY;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_PARTITIONS;
+
+/**
+ * 提交后异步失效缓存：从CacheChangeSource收到变更key，按key哈希到单线程分区保证同一个key按顺序处理，
+ * 延迟一段时间再处理一次（延时双删），把并发读回填的旧值也清掉
+ * 注册了加载函数的前缀用新值按CacheClient.query会选的格式写回（热点逻辑过期，其余带TTL），其他key删除
+ * 第一次处理成功后才向变更来源确认，失败的变更由来源重新投递
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+
+    private final CacheClient cacheClient;
+    private final CacheChangeSource changeSource;
+    private final ExecutorService[] partitions = new ExecutorService[CACHE_INVALIDATE_PARTITIONS];
+    private final ScheduledExecutorService delayScheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, Loader> loaders = new ConcurrentHashMap<>();
+
+    public CacheInvalidator(CacheClient cacheClient, CacheChangeSource changeSource) {
+        this.cacheClient = cacheClient;
+        this.changeSource = changeSource;
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    //某个前缀的key变更后用loader查出新值写回redis
+    public void registerLoader(String keyPrefix, Function<String, ?> loader, Long time, TimeUnit timeUnit) {
+        loaders.put(keyPrefix, new Loader(loader, time, timeUnit));
+    }
+
+    //等各服务注册完loader再开始消费
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        changeSource.subscribe(this::onChange);
+    }
+
+    public void onChange(Long changeId, String key) {
+        ExecutorService partition = partitions[Math.floorMod(key.hashCode(), partitions.length)];
+        partition.execute(() -> {
+            if (apply(key)) {
+                changeSource.ack(changeId);
+            }
+        });
+        //延时双删也走同一个分区，不会和后续变更乱序
+        delayScheduler.schedule(() -> partition.execute(() -> apply(key)),
+                CACHE_DOUBLE_DELETE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean apply(String key) {
+        try {
+            for (Map.Entry<String, Loader> entry : loaders.entrySet()) {
+                if (key.startsWith(entry.getKey())) {
+                    Loader loader = entry.getValue();
+                    Object value = loader.function.apply(key.substring(entry.getKey().length()));
+                    cacheClient.refresh(key, value, loader.time, loader.timeUnit);
+                    return true;
+                }
+            }
+            cacheClient.delete(key);
+            return true;
+        } catch (Exception e) {
+            log.error("缓存失效处理失败, key={}", key, e);
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        delayScheduler.shutdownNow();
+        for (ExecutorService partition : partitions) {
+            partition.shutdown();
+        }
+    }
+
+    private static class Loader {
+        private final Function<String, ?> function;
+        private final Long time;
+        private final TimeUnit timeUnit;
+
+        private Loader(Function<String, ?> function, Long time, TimeUnit timeUnit) {
+            this.function = function;
+            this.time = time;
+            this.timeUnit = timeUnit;
+        }
+    }
+}
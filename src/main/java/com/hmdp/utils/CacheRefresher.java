@@ -0,0 +1,169 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 逻辑过期缓存的重建线程池和提前刷新
+ * 用Count-Min Sketch统计访问频率，热点key在逻辑过期前主动重建，读请求就不会先读到过期数据
+ */
+@Slf4j
+@Component
+public class CacheRefresher {
+
+    //有界线程池，队列满了直接拒绝，由调用方决定怎么处理
+    private final ThreadPoolExecutor rebuildExecutor;
+    private final ScheduledExecutorService scheduler;
+
+    private final CountMinSketch sketch = new CountMinSketch(REFRESH_SKETCH_WIDTH);
+    //热点key和它的重建方法
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    private final Counter submitted;
+    private final Counter rejected;
+    private final Counter failed;
+    private final Counter refreshedAhead;
+    private final Timer duration;
+
+    private static class HotKey {
+        volatile long expireAt;
+        volatile Runnable refresh;
+        volatile boolean refreshing;
+    }
+
+    public CacheRefresher(MeterRegistry meterRegistry) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.rebuildExecutor = new ThreadPoolExecutor(REFRESH_POOL_SIZE, REFRESH_POOL_SIZE, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(REFRESH_QUEUE_CAPACITY),
+                r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cache-refresh-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.submitted = meterRegistry.counter("cache.rebuild.submitted");
+        this.rejected = meterRegistry.counter("cache.rebuild.rejected");
+        this.failed = meterRegistry.counter("cache.rebuild.failed");
+        this.refreshedAhead = meterRegistry.counter("cache.rebuild.ahead");
+        this.duration = meterRegistry.timer("cache.rebuild.duration");
+        meterRegistry.gauge("cache.rebuild.queue", rebuildExecutor, e -> e.getQueue().size());
+        meterRegistry.gauge("cache.refresh.hot.keys", hotKeys, Map::size);
+
+        scheduler.scheduleWithFixedDelay(this::refreshAhead, REFRESH_SCAN_INTERVAL, REFRESH_SCAN_INTERVAL, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::decay, REFRESH_DECAY_INTERVAL, REFRESH_DECAY_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 提交一个重建任务
+     * @return 线程池已满被拒绝时返回false
+     */
+    public boolean submit(Runnable task) {
+        try {
+            rebuildExecutor.execute(() -> {
+                long begin = System.nanoTime();
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    failed.increment();
+                    log.error("缓存重建失败", e);
+                } finally {
+                    duration.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+                }
+            });
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return false;
+        }
+    }
+
+    /**
+     * 登记一次没过期的读，访问次数达到阈值的key会在过期前被提前刷新
+     * 只看计数不再计数，读要先用countAccess计过一次
+     * @param refresh 重建方法，需要自己处理分布式锁
+     */
+    public void recordAccess(String key, LocalDateTime expireTime, Runnable refresh) {
+        if (sketch.estimate(key) < REFRESH_HOT_THRESHOLD) {
+            return;
+        }
+        HotKey hotKey = hotKeys.get(key);
+        if (hotKey == null) {
+            if (hotKeys.size() >= REFRESH_MAX_HOT_KEYS) {
+                return;
+            }
+            hotKey = hotKeys.computeIfAbsent(key, k -> new HotKey());
+        }
+        hotKey.expireAt = expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        hotKey.refresh = refresh;
+    }
+
+    //每次读计数一次，不登记提前刷新
+    public int countAccess(String key) {
+        return sketch.increment(key);
+    }
+
+    //最近一段时间的访问次数估计
+    public int estimate(String key) {
+        return sketch.estimate(key);
+    }
+
+    //找出快过期的热点key，提前重建
+    private void refreshAhead() {
+        long deadline = System.currentTimeMillis() + REFRESH_AHEAD_MILLIS;
+        hotKeys.forEach((key, hotKey) -> {
+            if (hotKey.refreshing || hotKey.expireAt > deadline) {
+                return;
+            }
+            hotKey.refreshing = true;
+            Runnable refresh = hotKey.refresh;
+            boolean accepted = submit(() -> {
+                try {
+                    refresh.run();
+                    refreshedAhead.increment();
+                } finally {
+                    //重建完从列表移除，下次访问时带着新的过期时间再加入
+                    hotKeys.remove(key, hotKey);
+                }
+            });
+            if (!accepted) {
+                hotKey.refreshing = false;
+            }
+        });
+    }
+
+    //访问次数减半，不再热的key移出列表
+    private void decay() {
+        sketch.halve();
+        hotKeys.entrySet().removeIf(e -> !e.getValue().refreshing && sketch.estimate(e.getKey()) < REFRESH_HOT_THRESHOLD);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        rebuildExecutor.shutdown();
+    }
+}
@@ -0,0 +1,13 @@
+package com.hmdp.utils;
+
+/**
+ * CacheClient.query按key选择的缓存策略
+ */
+public enum CacheStrategy {
+    //冷数据：写入带TTL，过期自动淘汰，未命中时本节点合并查库
+    PASS_THROUGH,
+    //重建代价高或有一定访问量：跨节点加锁重建，避免同时查库
+    MUTEX,
+    //热点：逻辑过期，过期后先返回旧值再异步重建
+    LOGICAL_EXPIRE
+}
@@ -0,0 +1,65 @@
+package com.hmdp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Count-Min Sketch，用固定内存估算每个key的访问次数，只会高估不会低估
+ */
+public class CountMinSketch {
+
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+    private final int width;
+    private final AtomicIntegerArray counters;
+
+    /**
+     * @param width 每行的计数器个数，取2的幂
+     */
+    public CountMinSketch(int width) {
+        this.width = Integer.highestOneBit(Math.max(16, width));
+        this.counters = new AtomicIntegerArray(this.width * SEEDS.length);
+    }
+
+    //记一次访问，返回加上这次后的估计值
+    public int increment(String key) {
+        long hash = hash(key);
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int count = counters.incrementAndGet(index(hash, row));
+            min = Math.min(min, count);
+        }
+        return min;
+    }
+
+    public int estimate(String key) {
+        long hash = hash(key);
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < SEEDS.length; row++) {
+            min = Math.min(min, counters.get(index(hash, row)));
+        }
+        return min;
+    }
+
+    //所有计数减半，让访问频率随时间衰减
+    public void halve() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.getAndUpdate(i, c -> c >>> 1);
+        }
+    }
+
+    private int index(long hash, int row) {
+        long h = (hash ^ SEEDS[row]) * 0xff51afd7ed558ccdL;
+        h ^= h >>> 32;
+        return row * width + (int) (h & (width - 1));
+    }
+
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
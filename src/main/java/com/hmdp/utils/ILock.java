@@ -1,7 +1,16 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 public interface ILock {
+    //只尝试一次，timeoutSec后自动释放
     boolean tryLock(Long timeoutSec);
 
+    /**
+     * 最多等待waitTime获取锁，leaseTime后自动释放
+     * leaseTime小于等于0时由看门狗定时续期，直到unlock
+     */
+    boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException;
+
     void unlock();
 }
@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 全局唯一id，按生成时间递增
+ * hmdp.id.generator选择实现：redis为RedisIdWorker，snowflake为SnowflakeIdGenerator
+ */
+public interface IdGenerator {
+
+    long nextId(String keyPrefix);
+
+    //不用访问网络的实现直接返回完成的future
+    default CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        return CompletableFuture.completedFuture(nextId(keyPrefix));
+    }
+
+    //从id里取出生成时的秒级时间戳，和currentSecond()是同一个时钟
+    long epochSecondOf(long id);
+
+    //这一秒之前生成的id都比它小
+    long minIdAt(long epochSecond);
+
+    long currentSecond();
+}
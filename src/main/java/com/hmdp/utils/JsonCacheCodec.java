@@ -0,0 +1,43 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * 原来的hutool json格式，兼容redis里已有的数据
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    private static final String EXPIRE_TIME = "expireTime";
+    private static final String DATA = "data";
+
+    @Override
+    public byte[] encode(Object value, LocalDateTime expireTime) {
+        if (expireTime == null) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(expireTime);
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> RedisData decode(byte[] bytes, Class<R> type) {
+        //只解析一次，再根据字段判断是不是逻辑过期的包装
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        RedisData redisData;
+        if (json.size() <= 2 && json.containsKey(EXPIRE_TIME)) {
+            redisData = json.toBean(RedisData.class);
+            JSONObject data = json.getJSONObject(DATA);
+            redisData.setData(data == null ? null : data.toBean(type));
+        } else {
+            redisData = new RedisData();
+            redisData.setData(json.toBean(type));
+        }
+        return redisData;
+    }
+}
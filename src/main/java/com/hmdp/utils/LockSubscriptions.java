@@ -0,0 +1,62 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 锁释放通知：等待同一把锁的线程共用一个频道订阅，收到释放消息时按排队顺序唤醒一个线程
+ * 没有线程阻塞时通知会留在信号量里，等待方每次重试前要先清掉
+ * 没有线程在等时取消订阅
+ */
+@Component
+public class LockSubscriptions {
+
+    private final RedisMessageListenerContainer container;
+    //频道 -> 订阅
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public LockSubscriptions(RedisMessageListenerContainer container) {
+        this.container = container;
+    }
+
+    public synchronized Entry subscribe(String channel) {
+        Entry entry = entries.get(channel);
+        if (entry == null) {
+            entry = new Entry(channel);
+            entries.put(channel, entry);
+            container.addMessageListener(entry.listener, entry.topic);
+        }
+        entry.waiters++;
+        return entry;
+    }
+
+    public synchronized void unsubscribe(Entry entry) {
+        if (--entry.waiters > 0) {
+            return;
+        }
+        entries.remove(entry.topic.getTopic());
+        container.removeMessageListener(entry.listener, entry.topic);
+    }
+
+    public static final class Entry {
+        private final ChannelTopic topic;
+        //公平信号量，先等的线程先被唤醒
+        private final Semaphore released = new Semaphore(0, true);
+        private final MessageListener listener = (message, pattern) -> released.release();
+        private int waiters;
+
+        private Entry(String channel) {
+            this.topic = new ChannelTopic(channel);
+        }
+
+        public Semaphore getReleased() {
+            return released;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 异步订单的处理状态
+ * 按订单id每ORDER_STATUS_BUCKET个放进一个hash，小hash在redis里是紧凑编码，值为"状态:用户id"
+ * 下单成功写QUEUED，消费端落库后写PERSISTED或FAILED，过期后查询走数据库
+ */
+@Component
+public class OrderStatusStore {
+
+    public enum Status {
+        QUEUED("Q"), PERSISTED("P"), FAILED("F");
+
+        private final String code;
+
+        Status(String code) {
+            this.code = code;
+        }
+
+        static Status of(String code) {
+            for (Status status : values()) {
+                if (status.code.equals(code)) {
+                    return status;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final StringRedisTemplate redisTemplate;
+    private final ReactiveStringRedisTemplate reactiveRedisTemplate;
+
+    public OrderStatusStore(StringRedisTemplate redisTemplate, ReactiveStringRedisTemplate reactiveRedisTemplate) {
+        this.redisTemplate = redisTemplate;
+        this.reactiveRedisTemplate = reactiveRedisTemplate;
+    }
+
+    //消费端可能已经先写了结果，QUEUED只在没有状态时写
+    public void queued(long orderId, Long userId) {
+        String key = key(orderId);
+        redisTemplate.opsForHash().putIfAbsent(key, field(orderId), value(Status.QUEUED, userId));
+        redisTemplate.expire(key, ORDER_STATUS_TTL, TimeUnit.SECONDS);
+    }
+
+    public CompletableFuture<Boolean> queuedAsync(long orderId, Long userId) {
+        String key = key(orderId);
+        return reactiveRedisTemplate.opsForHash().putIfAbsent(key, field(orderId), value(Status.QUEUED, userId))
+                .then(reactiveRedisTemplate.expire(key, Duration.ofSeconds(ORDER_STATUS_TTL)))
+                .toFuture();
+    }
+
+    /**
+     * 一次pipeline写入一批订单的结果
+     * @param results 订单id -> 用户id
+     */
+    public void saveAll(Map<Long, Long> results, Status status) {
+        if (results.isEmpty()) {
+            return;
+        }
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            results.forEach((orderId, userId) -> {
+                byte[] key = key(orderId).getBytes(StandardCharsets.UTF_8);
+                connection.hSet(key, field(orderId).getBytes(StandardCharsets.UTF_8),
+                        value(status, userId).getBytes(StandardCharsets.UTF_8));
+                connection.expire(key, ORDER_STATUS_TTL);
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 查询订单状态，不存在或者不是这个用户的订单返回null
+     */
+    public Status get(long orderId, Long userId) {
+        Object value = redisTemplate.opsForHash().get(key(orderId), field(orderId));
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.toString().split(":");
+        if (parts.length != 2 || !parts[1].equals(String.valueOf(userId))) {
+            return null;
+        }
+        return Status.of(parts[0]);
+    }
+
+    private static String key(long orderId) {
+        return ORDER_STATUS_KEY + orderId / ORDER_STATUS_BUCKET;
+    }
+
+    private static String field(long orderId) {
+        return String.valueOf(orderId % ORDER_STATUS_BUCKET);
+    }
+
+    private static String value(Status status, Long userId) {
+        return status.code + ":" + userId;
+    }
+}
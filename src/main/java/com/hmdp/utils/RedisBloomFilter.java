@@ -0,0 +1,213 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands.BitOperation;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_CHANNEL_PREFIX;
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY_PREFIX;
+
+/**
+ * 布隆过滤器，redis的bitmap为准，本地保留一份副本用来判断，不用每次访问redis
+ * 新增元素时写本地、写redis，并广播给其他节点
+ */
+public class RedisBloomFilter implements MessageListener {
+
+    private final String name;
+    private final String key;
+    private final String channel;
+    private final long numBits;
+    private final int numHashes;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisTemplate<String, byte[]> byteRedisTemplate;
+    private final Counter rejectedCounter;
+
+    //本地副本
+    private volatile AtomicLongArray bits;
+    //还没从数据库或redis加载过时不拦截任何请求
+    private volatile boolean ready;
+
+    public RedisBloomFilter(String name, long expectedInsertions, double fpp, StringRedisTemplate redisTemplate,
+                            RedisTemplate<String, byte[]> byteRedisTemplate, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.key = BLOOM_KEY_PREFIX + name;
+        this.channel = BLOOM_CHANNEL_PREFIX + name;
+        //m = -n*ln(p)/(ln2)^2，redis的bitmap最多2^32位
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numBits = Math.max(64, Math.min(m, 1L << 32));
+        //k = m/n*ln2
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.redisTemplate = redisTemplate;
+        this.byteRedisTemplate = byteRedisTemplate;
+        this.bits = new AtomicLongArray(words());
+        this.rejectedCounter = Counter.builder("cache.bloom.rejected")
+                .tag("filter", name)
+                .description("布隆过滤器拦截的请求数")
+                .register(meterRegistry);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * 判断元素可能存在，返回false时一定不存在
+     */
+    public boolean mightContain(Object member) {
+        if (!ready) {
+            return true;
+        }
+        AtomicLongArray current = bits;
+        long[] hash = hash(member);
+        for (int i = 0; i < numHashes; i++) {
+            long index = index(hash, i);
+            if ((current.get((int) (index >>> 6)) & mask(index)) == 0) {
+                rejectedCounter.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 新增元素，写本地、redis并通知其他节点
+     */
+    public void put(Object member) {
+        String value = String.valueOf(member);
+        putLocal(value);
+        long[] hash = hash(value);
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < numHashes; i++) {
+                connection.setBit(rawKey, index(hash, i), true);
+            }
+            return null;
+        });
+        redisTemplate.convertAndSend(channel, value);
+    }
+
+    //其他节点新增的元素
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        putLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private void putLocal(Object member) {
+        AtomicLongArray current = bits;
+        long[] hash = hash(member);
+        for (int i = 0; i < numHashes; i++) {
+            long index = index(hash, i);
+            long mask = mask(index);
+            current.accumulateAndGet((int) (index >>> 6), mask, (a, b) -> a | b);
+        }
+    }
+
+    /**
+     * 用数据库中的全部元素重建，loader负责把每个id交给consumer
+     * 新的位图和redis中已有的位图取并集，不会丢掉重建期间其他节点新增的元素
+     */
+    public void rebuild(Consumer<LongConsumer> loader) {
+        AtomicLongArray fresh = new AtomicLongArray(words());
+        loader.accept(id -> {
+            long[] hash = hash(id);
+            for (int i = 0; i < numHashes; i++) {
+                long index = index(hash, i);
+                fresh.accumulateAndGet((int) (index >>> 6), mask(index), (a, b) -> a | b);
+            }
+        });
+        String tmpKey = key + ":rebuild";
+        byteRedisTemplate.opsForValue().set(tmpKey, toBytes(fresh));
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] rawTmpKey = tmpKey.getBytes(StandardCharsets.UTF_8);
+        redisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.bitOp(BitOperation.OR, rawKey, rawKey, rawTmpKey);
+            connection.del(rawTmpKey);
+            return null;
+        });
+        syncFromRedis();
+    }
+
+    /**
+     * 从redis拉取位图合并到本地，补上错过的广播
+     */
+    public void syncFromRedis() {
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
+        AtomicLongArray merged = new AtomicLongArray(words());
+        if (bytes != null) {
+            for (int i = 0; i < bytes.length && (i >>> 3) < merged.length(); i++) {
+                //redis的bitmap第0位是第一个字节的最高位
+                long b = Long.reverse(bytes[i] & 0xFFL) >>> 56;
+                merged.accumulateAndGet(i >>> 3, b << ((i & 7) << 3), (x, y) -> x | y);
+            }
+        }
+        AtomicLongArray current = bits;
+        for (int i = 0; i < merged.length(); i++) {
+            merged.accumulateAndGet(i, current.get(i), (x, y) -> x | y);
+        }
+        bits = merged;
+        //切换期间写进旧数组的位再补一次
+        for (int i = 0; i < merged.length(); i++) {
+            merged.accumulateAndGet(i, current.get(i), (x, y) -> x | y);
+        }
+        ready = true;
+    }
+
+    private byte[] toBytes(AtomicLongArray array) {
+        byte[] bytes = new byte[(int) ((numBits + 7) >>> 3)];
+        for (int i = 0; i < bytes.length; i++) {
+            long word = array.get(i >>> 3);
+            long b = (word >>> ((i & 7) << 3)) & 0xFFL;
+            bytes[i] = (byte) (Long.reverse(b) >>> 56);
+        }
+        return bytes;
+    }
+
+    private int words() {
+        return (int) ((numBits + 63) >>> 6);
+    }
+
+    //本地第index位放在第index/64个long的低位起第index%64位，和redis之间转换时每个字节要做位翻转
+    private static long mask(long index) {
+        return 1L << (index & 63);
+    }
+
+    private long index(long[] hash, int i) {
+        return ((hash[0] + i * hash[1]) & Long.MAX_VALUE) % numBits;
+    }
+
+    //FNV-1a加上murmur3的fmix64，得到两个64位hash做双重散列
+    private static long[] hash(Object member) {
+        byte[] bytes = String.valueOf(member).getBytes(StandardCharsets.UTF_8);
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        long h1 = fmix64(h);
+        long h2 = fmix64(h1 ^ 0x9E3779B97F4A7C15L);
+        return new long[]{h1, h2};
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb93fe1a85ec3L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -11,10 +11,106 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final int CACHE_LOCAL_CAPACITY = 10000;
+    public static final Long CACHE_LOCAL_TTL = 10000L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    //提前刷新：10秒内访问20次以上算热点，逻辑过期前5秒开始重建
+    public static final int REFRESH_POOL_SIZE = 10;
+    public static final int REFRESH_QUEUE_CAPACITY = 1000;
+    public static final int REFRESH_SKETCH_WIDTH = 4096;
+    public static final int REFRESH_HOT_THRESHOLD = 20;
+    public static final int REFRESH_MAX_HOT_KEYS = 5000;
+    public static final Long REFRESH_AHEAD_MILLIS = 5000L;
+    public static final Long REFRESH_SCAN_INTERVAL = 1000L;
+    public static final Long REFRESH_DECAY_INTERVAL = 10L;
+
+    //自适应缓存策略：访问次数达到REFRESH_HOT_THRESHOLD用逻辑过期，达到5次或重建平均超过50毫秒用互斥锁，其余直接设TTL
+    public static final int CACHE_STRATEGY_WARM_THRESHOLD = 5;
+    public static final Long CACHE_STRATEGY_EXPENSIVE_MILLIS = 50L;
+
+    //发件箱：没有提交通知时每秒拉一次，每批最多100行，投递后10秒没确认就重新投递；失效按key分到8个有序分区，500毫秒后再删一次
+    public static final Long CACHE_OUTBOX_POLL_INTERVAL = 1000L;
+    public static final int CACHE_OUTBOX_BATCH = 100;
+    public static final Long CACHE_OUTBOX_REDELIVER_TIMEOUT = 10000L;
+    public static final int CACHE_INVALIDATE_PARTITIONS = 8;
+    public static final Long CACHE_DOUBLE_DELETE_DELAY = 500L;
+
+    public static final String BLOOM_KEY_PREFIX = "bloom:";
+    public static final String BLOOM_CHANNEL_PREFIX = "bloom:channel:";
+    public static final Long BLOOM_SYNC_INTERVAL = 60L;
+    public static final int BLOOM_SCAN_BATCH = 1000;
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    public static final String LOCK_WARM_UP_KEY = "lock:warm-up:shop";
+    public static final Long LOCK_WARM_UP_TTL = 600L;
+    public static final int CACHE_WARM_UP_BATCH = 1000;
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    //秒杀订单stream，所有节点共用一个消费者组，每个节点一个消费者
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    //其他消费者超过60秒没确认的消息认为它已经挂了，每30秒检查一次接管过来
+    public static final Long SECKILL_CLAIM_IDLE = 60000L;
+    public static final Long SECKILL_CLAIM_INTERVAL = 30L;
+    public static final int SECKILL_CLAIM_BATCH = 100;
+    //没有未确认消息、空闲超过10分钟的消费者从组里删除
+    public static final Long SECKILL_CONSUMER_EXPIRE = 600000L;
+    //消费端攒批：最多100条或者第一条到达后最多等50毫秒
+    public static final int SECKILL_BATCH_SIZE = 100;
+    public static final Long SECKILL_BATCH_WAIT = 50L;
+    //每个分区线程最多排队16个子批次，满了读线程等待
+    public static final int SECKILL_PARTITION_QUEUE = 16;
+    //异步秒杀查库补时间窗口：2个线程，最多排队1000个请求
+    public static final int SECKILL_META_LOAD_THREADS = 2;
+    public static final int SECKILL_META_LOAD_QUEUE = 1000;
+    //分桶库存：桶数记在seckill:buckets:{id}，分桶的优惠券id记在seckill:bucketed，最多8个桶
+    public static final String SECKILL_BUCKETS_KEY = "seckill:buckets:";
+    public static final String SECKILL_BUCKETED_KEY = "seckill:bucketed";
+    public static final int SECKILL_STREAM_SHARDS = 8;
+    //启动时迁移旧秒杀key，SCAN每次取1000个
+    public static final int SECKILL_MIGRATE_SCAN_COUNT = 1000;
+    //每秒检查一次，最多和最少的桶相差超过平均值20%才搬库存
+    public static final Long SECKILL_REBALANCE_INTERVAL = 1000L;
+    public static final double SECKILL_REBALANCE_RATIO = 0.2;
+    public static final String LOCK_SECKILL_REBALANCE_KEY = "lock:seckill:rebalance";
+    public static final Long LOCK_SECKILL_REBALANCE_TTL = 10L;
+    //秒杀券元数据hash，begin、end为毫秒时间戳，本地快照60秒后重新加载
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_META_BEGIN = "begin";
+    public static final String SECKILL_META_END = "end";
+    public static final String SECKILL_META_RATE = "rate";
+    public static final Long SECKILL_META_LOCAL_TTL = 60000L;
+    //没能落库的秒杀订单进死信队列，对账任务每10秒退回库存，已退回的订单id记在seckill:refunded
+    public static final String SECKILL_DLQ_KEY = "seckill:dlq";
+    public static final String SECKILL_REFUNDED_KEY = "seckill:refunded:";
+    public static final int SECKILL_DLQ_BATCH = 100;
+    //对账进度：已经统计到的(下单时间, 订单id)和订单数，只统计5分钟前插入的订单，每次最多读500条
+    public static final String SECKILL_RECONCILE_KEY = "seckill:reconcile:";
+    public static final String SECKILL_RECONCILE_LAST_TIME = "lastTime";
+    public static final String SECKILL_RECONCILE_LAST_ID = "lastId";
+    public static final String SECKILL_RECONCILE_COUNT = "count";
+    public static final Long SECKILL_RECONCILE_INTERVAL = 10000L;
+    public static final Long SECKILL_RECONCILE_LAG = 300L;
+    public static final int SECKILL_RECONCILE_PAGE = 500;
+    public static final String LOCK_SECKILL_RECONCILE_KEY = "lock:seckill:reconcile";
+    public static final Long LOCK_SECKILL_RECONCILE_TTL = 60L;
+    //snowflake的workerId租约，30秒过期，每10秒续期一次
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final Long ID_WORKER_TTL = 30000L;
+    public static final Long ID_WORKER_RENEW_INTERVAL = 10000L;
+    //异步订单状态：每128个订单一个hash，保留1天，更早的订单查数据库
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final int ORDER_STATUS_BUCKET = 128;
+    public static final Long ORDER_STATUS_TTL = 86400L;
+    //秒杀准入：分布式令牌桶的key
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    //售罄标记广播频道，本地标记10秒后失效
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final Long SECKILL_SOLD_OUT_TTL = 10000L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
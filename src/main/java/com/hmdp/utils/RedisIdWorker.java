@@ -1,19 +1,63 @@
 package com.hmdp.utils;
 
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class RedisIdWorker {
+/**
+ * 全局id：31位秒级时间戳 + 32位当天序列号
+ * 号段模式下每次INCRBY取一段序列号在本地发放，用掉一半时提前取下一段，redis每segmentStep个id访问一次
+ * segmentStep为1时每个id INCR一次
+ */
+public class RedisIdWorker implements IdGenerator {
 
     private static final long BEGIN_TIMESTAMP = 1640995200L;
     private static final int COUNT_BITS = 32;
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
 
-    private StringRedisTemplate redisTemplate;
+    private final StringRedisTemplate redisTemplate;
+    private final ReactiveStringRedisTemplate reactiveRedisTemplate;
+    private final long segmentStep;
 
+    //业务前缀 -> 号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private volatile Day today = new Day(LocalDateTime.now());
+
+    public RedisIdWorker(StringRedisTemplate redisTemplate, ReactiveStringRedisTemplate reactiveRedisTemplate,
+                         long segmentStep) {
+        this.redisTemplate = redisTemplate;
+        this.reactiveRedisTemplate = reactiveRedisTemplate;
+        this.segmentStep = segmentStep;
+    }
+
+    @Override
     public long nextId(String keyPrefix) {
+        if (segmentStep <= 1) {
+            return incrementId(keyPrefix);
+        }
+        Day day = today();
+        long timestamp = day.nowSecond() - BEGIN_TIMESTAMP;
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            Segment segment = buffer.current;
+            long count = buffer.take(segment, day);
+            if (count > 0) {
+                return timestamp << COUNT_BITS | count;
+            }
+            //号段用完了，等下一段加载完成，每segmentStep个id最多一次
+            buffer.advance(segment, day).join();
+        }
+    }
+
+    //原来的方式：每个id自增一次
+    private long incrementId(String keyPrefix) {
         //生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -21,7 +65,7 @@ public class RedisIdWorker {
 
         //生成序列号
         //先拿到当前日期
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DAY_FORMATTER);
         //自增长
         long count = redisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
 
@@ -29,4 +73,167 @@ public class RedisIdWorker {
         return timestamp << COUNT_BITS | count;
     }
 
+    @Override
+    public long epochSecondOf(long id) {
+        return (id >>> COUNT_BITS) + BEGIN_TIMESTAMP;
+    }
+
+    @Override
+    public long minIdAt(long epochSecond) {
+        return (epochSecond - BEGIN_TIMESTAMP) << COUNT_BITS;
+    }
+
+    //id里的时间戳是本地时间按UTC换算的秒数
+    @Override
+    public long currentSecond() {
+        return LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+    }
+
+    //不阻塞调用线程，自增完成后在lettuce的线程上拼接
+    @Override
+    public CompletableFuture<Long> nextIdAsync(String keyPrefix) {
+        if (segmentStep <= 1) {
+            LocalDateTime now = LocalDateTime.now();
+            long timestamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+            String date = now.format(DAY_FORMATTER);
+            return reactiveRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date)
+                    .map(count -> timestamp << COUNT_BITS | count)
+                    .toFuture();
+        }
+        Day day = today();
+        long timestamp = day.nowSecond() - BEGIN_TIMESTAMP;
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        Segment segment = buffer.current;
+        long count = buffer.take(segment, day);
+        if (count > 0) {
+            return CompletableFuture.completedFuture(timestamp << COUNT_BITS | count);
+        }
+        return buffer.advance(segment, day).thenCompose(v -> nextIdAsync(keyPrefix));
+    }
+
+    //只在跨天时重新计算日期
+    private Day today() {
+        Day day = today;
+        if (day.nowSecond() >= day.endSecond) {
+            day = new Day(LocalDateTime.now());
+            today = day;
+        }
+        return day;
+    }
+
+    private static final class Day {
+        private final String key;
+        private final long offsetSeconds;
+        private final long endSecond;
+
+        Day(LocalDateTime now) {
+            this.key = now.format(DAY_FORMATTER);
+            this.offsetSeconds = now.toEpochSecond(ZoneOffset.UTC) - System.currentTimeMillis() / 1000;
+            this.endSecond = now.toLocalDate().plusDays(1).atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+        }
+
+        long nowSecond() {
+            return System.currentTimeMillis() / 1000 + offsetSeconds;
+        }
+    }
+
+    //(start, max]之间的序列号，发到prefetchAt时开始取下一段
+    private static final class Segment {
+        private static final Segment EMPTY = new Segment("", 0, 0, 0);
+
+        private final String day;
+        private final AtomicLong cursor;
+        private final long max;
+        private final long prefetchAt;
+
+        Segment(String day, long start, long max, long prefetchAt) {
+            this.day = day;
+            this.cursor = new AtomicLong(start);
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+        }
+
+        boolean exhausted() {
+            return cursor.get() >= max;
+        }
+    }
+
+    /**
+     * 双缓冲：current在发放，next是提前取好的下一段
+     * 发放只有一次CAS，切换号段和加载时才加锁
+     */
+    private final class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current = Segment.EMPTY;
+        private Segment next;
+        private CompletableFuture<Void> loading;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        //从号段里取一个序列号，用完了或者跨天了返回-1
+        long take(Segment segment, Day day) {
+            if (!segment.day.equals(day.key)) {
+                return -1;
+            }
+            long count = segment.cursor.incrementAndGet();
+            if (count > segment.max) {
+                return -1;
+            }
+            if (count == segment.prefetchAt) {
+                load(day);
+            }
+            return count;
+        }
+
+        //切换到下一段，下一段还没取到就去取，返回切换完成的future
+        synchronized CompletableFuture<Void> advance(Segment used, Day day) {
+            if (current != used) {
+                //其他线程已经切换过
+                return CompletableFuture.completedFuture(null);
+            }
+            if (next != null && next.day.equals(day.key)) {
+                current = next;
+                next = null;
+                return CompletableFuture.completedFuture(null);
+            }
+            next = null;
+            return load(day);
+        }
+
+        //同一时间只有一个INCRBY在进行
+        synchronized CompletableFuture<Void> load(Day day) {
+            if (loading != null) {
+                return loading;
+            }
+            CompletableFuture<Void> future = reactiveRedisTemplate.opsForValue()
+                    .increment("icr:" + keyPrefix + ":" + day.key, segmentStep)
+                    .toFuture()
+                    .thenAccept(end -> install(day, end));
+            loading = future;
+            future.whenComplete((v, e) -> finished(future));
+            return future;
+        }
+
+        private synchronized void install(Day day, long end) {
+            if (!day.key.equals(today.key)) {
+                //跨天前发出的请求，这一段不再使用
+                return;
+            }
+            long start = end - segmentStep;
+            Segment segment = new Segment(day.key, start, end, start + segmentStep / 2);
+            if (current.exhausted() || !current.day.equals(day.key)) {
+                current = segment;
+            } else {
+                next = segment;
+            }
+        }
+
+        private synchronized void finished(CompletableFuture<Void> future) {
+            if (loading == future) {
+                loading = null;
+            }
+        }
+    }
 }
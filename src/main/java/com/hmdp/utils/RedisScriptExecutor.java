@@ -0,0 +1,84 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 执行lua脚本：启动时SCRIPT LOAD所有脚本，语法错误直接启动失败
+ * 执行时先EVALSHA，只传sha1；redis重启或者换了节点返回NOSCRIPT时，spring会改用EVAL并重新缓存脚本
+ * 每个脚本一个耗时直方图 redis.script{script}
+ */
+@Slf4j
+@Component
+public class RedisScriptExecutor {
+
+    private final StringRedisTemplate redisTemplate;
+    private final ReactiveStringRedisTemplate reactiveRedisTemplate;
+    private final Map<RedisScripts, Timer> timers = new EnumMap<>(RedisScripts.class);
+
+    public RedisScriptExecutor(StringRedisTemplate redisTemplate, ReactiveStringRedisTemplate reactiveRedisTemplate,
+                               MeterRegistry meterRegistry) {
+        this.redisTemplate = redisTemplate;
+        this.reactiveRedisTemplate = reactiveRedisTemplate;
+        for (RedisScripts script : RedisScripts.values()) {
+            timers.put(script, Timer.builder("redis.script")
+                    .tag("script", script.name().toLowerCase())
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+        }
+    }
+
+    @PostConstruct
+    public void preload() {
+        for (RedisScripts script : RedisScripts.values()) {
+            //读不到脚本文件直接抛异常
+            String source = script.getScript().getScriptAsString();
+            try {
+                String sha = redisTemplate.execute((RedisCallback<String>) connection ->
+                        connection.scriptLoad(source.getBytes(StandardCharsets.UTF_8)));
+                if (!script.getScript().getSha1().equals(sha)) {
+                    log.warn("脚本sha1不一致: " + script.getLocation() + " " + sha);
+                }
+            } catch (RedisSystemException e) {
+                //redis拒绝了脚本，一般是语法错误
+                throw new IllegalStateException("lua脚本加载失败: " + script.getLocation(), e);
+            } catch (Exception e) {
+                //redis暂时连不上，第一次执行时再加载
+                log.warn("预加载lua脚本失败: " + script.getLocation(), e);
+            }
+        }
+    }
+
+    public Long execute(RedisScripts script, List<String> keys, String... args) {
+        long begin = System.nanoTime();
+        try {
+            return redisTemplate.execute(script.getScript(), keys, (Object[]) args);
+        } finally {
+            timers.get(script).record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    //从订阅开始计时
+    public Mono<Long> executeReactive(RedisScripts script, List<String> keys, List<String> args) {
+        return Mono.defer(() -> {
+            long begin = System.nanoTime();
+            return reactiveRedisTemplate.execute(script.getScript(), keys, args)
+                    .next()
+                    .doFinally(signal -> timers.get(script).record(System.nanoTime() - begin, TimeUnit.NANOSECONDS));
+        });
+    }
+}
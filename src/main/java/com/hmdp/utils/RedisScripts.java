@@ -0,0 +1,43 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+/**
+ * 项目里所有的lua脚本，统一在这里登记，启动时由RedisScriptExecutor校验并预加载
+ */
+public enum RedisScripts {
+    //秒杀：时间窗口、一人一单、扣库存、写stream
+    SECKILL("seckill.lua"),
+    //分桶库存搬运和退回
+    STOCK_TAKE("stock_take.lua"),
+    STOCK_GIVE("stock_give.lua"),
+    STOCK_REFUND("stock_refund.lua"),
+    //秒杀准入令牌桶
+    RATE_LIMIT("rate_limit.lua"),
+    //可重入锁
+    LOCK("lock.lua"),
+    LOCK_UNLOCK("lock_unlock.lua"),
+    LOCK_RENEW("lock_renew.lua"),
+    //值等于持有者时删除、续期，workerId租约用
+    UNLOCK("unlock.lua"),
+    LEASE_RENEW("lease_renew.lua");
+
+    private final String location;
+    private final DefaultRedisScript<Long> script;
+
+    RedisScripts(String location) {
+        this.location = location;
+        this.script = new DefaultRedisScript<>();
+        this.script.setLocation(new ClassPathResource(location));
+        this.script.setResultType(Long.class);
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public DefaultRedisScript<Long> getScript() {
+        return script;
+    }
+}
@@ -4,19 +4,21 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     private StringRedisTemplate redisTemplate;
+    private TtlPolicy ttlPolicy;
 
-    public RefreshTokenInterceptor(StringRedisTemplate redisTemplate) {
+    public RefreshTokenInterceptor(StringRedisTemplate redisTemplate, TtlPolicy ttlPolicy) {
         this.redisTemplate = redisTemplate;
+        this.ttlPolicy = ttlPolicy;
     }
 
     @Override
@@ -38,7 +40,8 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         //保存信息到threadLocal
         UserHolder.saveUser(userDTO);
         //刷新有效期
-        redisTemplate.expire(key,RedisConstants.LOGIN_USER_TTL, TimeUnit.MINUTES);
+        redisTemplate.expire(key,
+                ttlPolicy.ttlSeconds(key, TimeUnit.MINUTES.toSeconds(RedisConstants.LOGIN_USER_TTL)), TimeUnit.SECONDS);
         return true;
     }
 
@@ -47,4 +50,10 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         UserHolder.removeUser();
     }
 
+    //异步请求的原线程不会调用afterCompletion，在这里清掉，异步结果分派时会重新走preHandle
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
+
 }
@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/**
+ * 秒杀接口准入控制，在执行秒杀逻辑之前把多余的请求挡掉
+ * 先过本节点的总令牌桶，保护tomcat线程和redis连接池；再过本节点这张券的令牌桶；
+ * 券配置了速率的再用redis令牌桶限制所有节点加起来的速率
+ */
+@Component
+public class SeckillAdmission {
+
+    private final RedisScriptExecutor scriptExecutor;
+    private final SeckillKeys seckillKeys;
+    private final RedisBloomFilter voucherBloomFilter;
+    private final TokenBucket nodeBucket;
+    private final long defaultVoucherRate;
+    private final Map<Long, TokenBucket> voucherBuckets = new ConcurrentHashMap<>();
+
+    private final Counter accepted;
+    private final Counter rejectedByNode;
+    private final Counter rejectedByVoucher;
+    private final Counter rejectedByCluster;
+
+    public SeckillAdmission(RedisScriptExecutor scriptExecutor, SeckillKeys seckillKeys,
+                            @Qualifier("voucherBloomFilter") RedisBloomFilter voucherBloomFilter,
+                            MeterRegistry meterRegistry,
+                            @Value("${hmdp.seckill.admission.node-rate:5000}") long nodeRate,
+                            @Value("${hmdp.seckill.admission.voucher-rate:1000}") long defaultVoucherRate) {
+        this.scriptExecutor = scriptExecutor;
+        this.seckillKeys = seckillKeys;
+        this.voucherBloomFilter = voucherBloomFilter;
+        this.nodeBucket = new TokenBucket(nodeRate);
+        this.defaultVoucherRate = defaultVoucherRate;
+        this.accepted = meterRegistry.counter("seckill.admission", "result", "accepted", "limiter", "none");
+        this.rejectedByNode = meterRegistry.counter("seckill.admission", "result", "rejected", "limiter", "node");
+        this.rejectedByVoucher = meterRegistry.counter("seckill.admission", "result", "rejected", "limiter", "voucher");
+        this.rejectedByCluster = meterRegistry.counter("seckill.admission", "result", "rejected", "limiter", "cluster");
+    }
+
+    public boolean tryAcquire(Long voucherId) {
+        if (!nodeBucket.tryAcquire()) {
+            rejectedByNode.increment();
+            return false;
+        }
+        //不存在的券交给秒杀逻辑直接拒绝，不为它创建令牌桶
+        if (!voucherBloomFilter.mightContain(voucherId)) {
+            accepted.increment();
+            return true;
+        }
+        Long rate = seckillKeys.meta(voucherId).getRate();
+        if (!tryAcquireLocal(voucherId, rate)) {
+            return false;
+        }
+        if (rate == null) {
+            accepted.increment();
+            return true;
+        }
+        return clusterAllowed(scriptExecutor.execute(RedisScripts.RATE_LIMIT, Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                rate.toString(), rate.toString(), String.valueOf(System.currentTimeMillis())));
+    }
+
+    //异步版本，读元数据和redis令牌桶都走响应式接口，调用线程不等redis返回
+    public CompletableFuture<Boolean> tryAcquireAsync(Long voucherId) {
+        if (!nodeBucket.tryAcquire()) {
+            rejectedByNode.increment();
+            return CompletableFuture.completedFuture(false);
+        }
+        if (!voucherBloomFilter.mightContain(voucherId)) {
+            accepted.increment();
+            return CompletableFuture.completedFuture(true);
+        }
+        return seckillKeys.metaAsync(voucherId).thenCompose(meta -> {
+            Long rate = meta.getRate();
+            if (!tryAcquireLocal(voucherId, rate)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            if (rate == null) {
+                accepted.increment();
+                return CompletableFuture.completedFuture(true);
+            }
+            return scriptExecutor.executeReactive(RedisScripts.RATE_LIMIT, Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                            Arrays.asList(rate.toString(), rate.toString(), String.valueOf(System.currentTimeMillis())))
+                    .toFuture()
+                    .thenApply(this::clusterAllowed);
+        });
+    }
+
+    //本节点这张券的令牌桶
+    private boolean tryAcquireLocal(Long voucherId, Long rate) {
+        //单节点的速率不会超过所有节点加起来的速率
+        long localRate = rate == null ? defaultVoucherRate : Math.min(rate, defaultVoucherRate);
+        TokenBucket bucket = voucherBuckets.get(voucherId);
+        if (bucket == null || bucket.getRate() != localRate) {
+            bucket = new TokenBucket(localRate);
+            voucherBuckets.put(voucherId, bucket);
+        }
+        if (!bucket.tryAcquire()) {
+            rejectedByVoucher.increment();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean clusterAllowed(Long allowed) {
+        if (allowed == null || allowed == 0) {
+            rejectedByCluster.increment();
+            return false;
+        }
+        accepted.increment();
+        return true;
+    }
+}
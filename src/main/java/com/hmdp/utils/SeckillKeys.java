@@ -0,0 +1,226 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.NumberUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀相关的key
+ * 分桶的优惠券把库存拆成K份，第i桶的库存、下单用户和订单stream用同一个hash tag，放在同一个slot里，脚本可以原子执行
+ * hash tag在固定的SECKILL_STREAM_SHARDS个分片里按(voucherId + i)取模，不同热点券的桶也会分散开
+ * 只有1个桶的优惠券按第0桶处理，同样带hash tag，集群模式下脚本不会CROSSSLOT
+ * 启动时把旧版本没带hash tag的key改名成第0桶的key，旧的stream.orders继续消费到清空为止
+ * 桶数和秒杀时间窗口在本地保留一份快照，窗口外的请求不用访问redis
+ */
+@Slf4j
+@Component
+public class SeckillKeys {
+
+    private static final List<Object> META_FIELDS = Arrays.asList(SECKILL_META_BEGIN, SECKILL_META_END, SECKILL_META_RATE);
+
+    private final StringRedisTemplate redisTemplate;
+    private final ReactiveStringRedisTemplate reactiveRedisTemplate;
+
+    //优惠券id -> 元数据快照
+    private final Map<Long, SeckillMeta> metas = new ConcurrentHashMap<>();
+
+    public SeckillKeys(StringRedisTemplate redisTemplate, ReactiveStringRedisTemplate reactiveRedisTemplate) {
+        this.redisTemplate = redisTemplate;
+        this.reactiveRedisTemplate = reactiveRedisTemplate;
+    }
+
+    /**
+     * 旧版本只有1个桶的优惠券用的是不带hash tag的key，启动时改名成第0桶的key
+     * 旧key只可能出现在单机redis上（集群模式下旧key执行脚本会CROSSSLOT），单机上跨slot改名没有问题
+     * 改名要在没有旧版本节点写入时执行，滚动升级时先停掉旧版本节点
+     */
+    @PostConstruct
+    public void migrateLegacyKeys() {
+        List<Long> voucherIds = new ArrayList<>();
+        redisTemplate.execute((RedisCallback<Void>) connection -> {
+            try (Cursor<byte[]> cursor = connection.scan(ScanOptions.scanOptions()
+                    .match(SECKILL_STOCK_KEY + "*").count(SECKILL_MIGRATE_SCAN_COUNT).build())) {
+                while (cursor.hasNext()) {
+                    String id = new String(cursor.next(), StandardCharsets.UTF_8).substring(SECKILL_STOCK_KEY.length());
+                    if (NumberUtil.isLong(id)) {
+                        voucherIds.add(Long.valueOf(id));
+                    }
+                }
+            }
+            return null;
+        });
+        for (Long voucherId : voucherIds) {
+            rename(SECKILL_STOCK_KEY + voucherId, stockKey(voucherId, 0, 1));
+            rename(SECKILL_ORDER_KEY + voucherId, orderKey(voucherId, 0, 1));
+            rename(SECKILL_REFUNDED_KEY + voucherId, refundedKey(voucherId, 0, 1));
+            rename(SECKILL_META_KEY + voucherId, metaKey(voucherId, 0, 1));
+        }
+        if (!voucherIds.isEmpty()) {
+            log.info("迁移了{}张优惠券的秒杀key", voucherIds.size());
+        }
+    }
+
+    private void rename(String oldKey, String newKey) {
+        if (BooleanUtil.isTrue(redisTemplate.hasKey(oldKey))
+                && !BooleanUtil.isTrue(redisTemplate.renameIfAbsent(oldKey, newKey))) {
+            log.warn("秒杀key已经存在，没有迁移, key={}", oldKey);
+        }
+    }
+
+    public int bucketCount(Long voucherId) {
+        return meta(voucherId).getBuckets();
+    }
+
+    //本地快照过期了才访问redis
+    public SeckillMeta meta(Long voucherId) {
+        SeckillMeta meta = metas.get(voucherId);
+        if (meta != null && System.currentTimeMillis() - meta.getLoadedAt() < SECKILL_META_LOCAL_TTL) {
+            return meta;
+        }
+        meta = loadMeta(voucherId);
+        metas.put(voucherId, meta);
+        return meta;
+    }
+
+    //异步版本，快照过期时用响应式接口读redis，不占用调用线程
+    public CompletableFuture<SeckillMeta> metaAsync(Long voucherId) {
+        SeckillMeta meta = metas.get(voucherId);
+        if (meta != null && System.currentTimeMillis() - meta.getLoadedAt() < SECKILL_META_LOCAL_TTL) {
+            return CompletableFuture.completedFuture(meta);
+        }
+        return reactiveRedisTemplate.opsForValue().get(SECKILL_BUCKETS_KEY + voucherId)
+                .map(Integer::parseInt)
+                .defaultIfEmpty(1)
+                .flatMap(buckets -> reactiveRedisTemplate.opsForHash()
+                        .multiGet(metaKey(voucherId, 0, buckets), META_FIELDS)
+                        .map(window -> toMeta(buckets, window)))
+                .doOnNext(loaded -> metas.put(voucherId, loaded))
+                .toFuture();
+    }
+
+    private SeckillMeta loadMeta(Long voucherId) {
+        String value = redisTemplate.opsForValue().get(SECKILL_BUCKETS_KEY + voucherId);
+        int buckets = value == null ? 1 : Integer.parseInt(value);
+        return toMeta(buckets, redisTemplate.opsForHash().multiGet(metaKey(voucherId, 0, buckets), META_FIELDS));
+    }
+
+    private static SeckillMeta toMeta(int buckets, List<Object> window) {
+        return new SeckillMeta(buckets, toLong(window.get(0)), toLong(window.get(1)), toLong(window.get(2)),
+                System.currentTimeMillis());
+    }
+
+    /**
+     * 保存桶数和秒杀时间，每个桶一份时间窗口，和库存在同一个slot，脚本里原子判断
+     * 限流速率只在第一个桶里保存一份
+     */
+    public SeckillMeta saveMeta(Long voucherId, int buckets, long beginMillis, long endMillis, Long rate) {
+        if (buckets > 1) {
+            redisTemplate.opsForValue().set(SECKILL_BUCKETS_KEY + voucherId, String.valueOf(buckets));
+        }
+        Map<String, String> window = new HashMap<>(4);
+        window.put(SECKILL_META_BEGIN, String.valueOf(beginMillis));
+        window.put(SECKILL_META_END, String.valueOf(endMillis));
+        for (int i = 0; i < buckets; i++) {
+            redisTemplate.opsForHash().putAll(metaKey(voucherId, i, buckets), window);
+        }
+        if (rate != null) {
+            redisTemplate.opsForHash().put(metaKey(voucherId, 0, buckets), SECKILL_META_RATE, rate.toString());
+        }
+        SeckillMeta meta = new SeckillMeta(buckets, beginMillis, endMillis, rate, System.currentTimeMillis());
+        metas.put(voucherId, meta);
+        return meta;
+    }
+
+    //修改限流速率，其他节点最多SECKILL_META_LOCAL_TTL后生效，rate为null取消限制
+    public SeckillMeta saveRate(Long voucherId, Long rate) {
+        SeckillMeta meta = meta(voucherId);
+        String key = metaKey(voucherId, 0, meta.getBuckets());
+        if (rate == null) {
+            redisTemplate.opsForHash().delete(key, SECKILL_META_RATE);
+        } else {
+            redisTemplate.opsForHash().put(key, SECKILL_META_RATE, rate.toString());
+        }
+        meta = meta.withRate(rate);
+        metas.put(voucherId, meta);
+        return meta;
+    }
+
+    private static Long toLong(Object value) {
+        return value == null ? null : Long.valueOf(value.toString());
+    }
+
+    public static String metaKey(Long voucherId, int bucket, int buckets) {
+        return SECKILL_META_KEY + tag(voucherId, bucket) + ":" + voucherId;
+    }
+
+    public static String stockKey(Long voucherId, int bucket, int buckets) {
+        return SECKILL_STOCK_KEY + tag(voucherId, bucket) + ":" + voucherId;
+    }
+
+    public static String orderKey(Long voucherId, int bucket, int buckets) {
+        return SECKILL_ORDER_KEY + tag(voucherId, bucket) + ":" + voucherId;
+    }
+
+    public static String refundedKey(Long voucherId, int bucket, int buckets) {
+        return SECKILL_REFUNDED_KEY + tag(voucherId, bucket) + ":" + voucherId;
+    }
+
+    public static String streamKey(Long voucherId, int bucket, int buckets) {
+        return SECKILL_ORDER_STREAM + ":" + tag(voucherId, bucket);
+    }
+
+    //旧版本的stream和所有分片stream
+    public static List<String> streamKeys() {
+        List<String> keys = new ArrayList<>(SECKILL_STREAM_SHARDS + 1);
+        keys.add(SECKILL_ORDER_STREAM);
+        for (int i = 0; i < SECKILL_STREAM_SHARDS; i++) {
+            keys.add(SECKILL_ORDER_STREAM + ":{" + i + "}");
+        }
+        return keys;
+    }
+
+    /**
+     * 用户的桶遍历顺序：从按userId选出的桶开始依次往后
+     * 同一个用户每次顺序都一样，再加上空桶不会再被补货，重复下单一定会在买过的那个桶被拦住
+     */
+    public static int[] walk(Long userId, int buckets) {
+        int[] order = new int[buckets];
+        int home = Math.floorMod(Long.hashCode(userId), buckets);
+        for (int i = 0; i < buckets; i++) {
+            order[i] = (home + i) % buckets;
+        }
+        return order;
+    }
+
+    //把库存尽量平均分到各个桶
+    public static int[] split(int stock, int buckets) {
+        int[] stocks = new int[buckets];
+        Arrays.fill(stocks, stock / buckets);
+        for (int i = 0; i < stock % buckets; i++) {
+            stocks[i]++;
+        }
+        return stocks;
+    }
+
+    private static String tag(Long voucherId, int bucket) {
+        return "{" + Math.floorMod(voucherId + bucket, SECKILL_STREAM_SHARDS) + "}";
+    }
+}
@@ -0,0 +1,35 @@
+package com.hmdp.utils;
+
+import lombok.Value;
+
+/**
+ * 秒杀券元数据的本地快照，整体替换，不会修改
+ */
+@Value
+public class SeckillMeta {
+    //库存桶数
+    int buckets;
+    //秒杀开始、结束时间的毫秒时间戳，redis里还没有时为null
+    Long beginMillis;
+    Long endMillis;
+    //每秒最多放行多少个请求，所有节点一起算，null为不限制
+    Long rate;
+    //加载时间，超过SECKILL_META_LOCAL_TTL重新从redis加载
+    long loadedAt;
+
+    public SeckillMeta withRate(Long rate) {
+        return new SeckillMeta(buckets, beginMillis, endMillis, rate, loadedAt);
+    }
+
+    public boolean hasWindow() {
+        return beginMillis != null && endMillis != null;
+    }
+
+    public boolean notStarted(long now) {
+        return beginMillis != null && now < beginMillis;
+    }
+
+    public boolean ended(long now) {
+        return endMillis != null && now > endMillis;
+    }
+}
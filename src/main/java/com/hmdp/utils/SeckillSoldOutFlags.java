@@ -0,0 +1,82 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_TTL;
+
+/**
+ * 本节点的售罄标记，脚本返回库存不足后标记，之后的请求不用再访问redis
+ * 标记和清除都广播给其他节点；标记一段时间后自动失效，补货消息和售罄消息乱序时也能恢复
+ */
+@Component
+public class SeckillSoldOutFlags implements MessageListener {
+
+    private static final String SOLD_OUT = "1:";
+    private static final String RESTOCK = "0:";
+
+    private final StringRedisTemplate redisTemplate;
+    //异步秒杀会在lettuce线程上标记，广播不能阻塞
+    private final ReactiveStringRedisTemplate reactiveRedisTemplate;
+    private final Counter rejectedCounter;
+
+    //优惠券id -> 标记失效的时间戳
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    public SeckillSoldOutFlags(StringRedisTemplate redisTemplate, ReactiveStringRedisTemplate reactiveRedisTemplate,
+                               MeterRegistry meterRegistry) {
+        this.redisTemplate = redisTemplate;
+        this.reactiveRedisTemplate = reactiveRedisTemplate;
+        this.rejectedCounter = Counter.builder("seckill.sold.out.rejected")
+                .description("售罄后在本地直接拒绝的请求数")
+                .register(meterRegistry);
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            //过期了放一个请求去redis确认，确认还是售罄会重新标记
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        rejectedCounter.increment();
+        return true;
+    }
+
+    public void markSoldOut(Long voucherId) {
+        //本节点已经标记过就不再广播
+        if (soldOut.put(voucherId, System.currentTimeMillis() + SECKILL_SOLD_OUT_TTL) == null) {
+            reactiveRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId).subscribe();
+        }
+    }
+
+    //补货后清除所有节点的标记
+    public void reset(Long voucherId) {
+        soldOut.remove(voucherId);
+        redisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESTOCK + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        Long voucherId = Long.valueOf(body.substring(2));
+        if (body.startsWith(SOLD_OUT)) {
+            soldOut.put(voucherId, System.currentTimeMillis() + SECKILL_SOLD_OUT_TTL);
+        } else {
+            soldOut.remove(voucherId);
+        }
+    }
+}
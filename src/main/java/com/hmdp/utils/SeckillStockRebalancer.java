@@ -0,0 +1,169 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 分桶库存再平衡：用户按hash选桶，各桶消耗速度不一样，定时把库存多的桶匀一些给库存少的桶
+ * 只往还有库存的桶里搬，空桶保持为空，见SeckillKeys.walk
+ * 各个桶可能在不同的slot，取出和放入分两步，放入失败时还回原来的桶
+ */
+@Slf4j
+@Component
+public class SeckillStockRebalancer {
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisScriptExecutor scriptExecutor;
+    private final SeckillKeys seckillKeys;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-rebalance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public SeckillStockRebalancer(StringRedisTemplate redisTemplate, RedisScriptExecutor scriptExecutor,
+                                  SeckillKeys seckillKeys) {
+        this.redisTemplate = redisTemplate;
+        this.scriptExecutor = scriptExecutor;
+        this.seckillKeys = seckillKeys;
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::rebalanceAll,
+                SECKILL_REBALANCE_INTERVAL, SECKILL_REBALANCE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    //同一时间只有一个节点在搬，锁的值是这一轮的标识，释放时只删自己的锁
+    private void rebalanceAll() {
+        String owner = UUID.randomUUID().toString();
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(LOCK_SECKILL_REBALANCE_KEY, owner,
+                LOCK_SECKILL_REBALANCE_TTL, TimeUnit.SECONDS);
+        if (!BooleanUtil.isTrue(locked)) {
+            return;
+        }
+        try {
+            Set<String> vouchers = redisTemplate.opsForSet().members(SECKILL_BUCKETED_KEY);
+            if (vouchers == null) {
+                return;
+            }
+            for (String voucherId : vouchers) {
+                rebalance(Long.valueOf(voucherId));
+            }
+        } catch (Exception e) {
+            log.error("分桶库存再平衡失败", e);
+        } finally {
+            scriptExecutor.execute(RedisScripts.UNLOCK, Collections.singletonList(LOCK_SECKILL_REBALANCE_KEY), owner);
+        }
+    }
+
+    public void rebalance(Long voucherId) {
+        int buckets = seckillKeys.bucketCount(voucherId);
+        List<String> keys = new ArrayList<>(buckets);
+        for (int i = 0; i < buckets; i++) {
+            keys.add(SeckillKeys.stockKey(voucherId, i, buckets));
+        }
+        List<String> values = redisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            return;
+        }
+        long[] stocks = new long[buckets];
+        long total = 0;
+        int nonEmpty = 0;
+        for (int i = 0; i < buckets; i++) {
+            String value = values.get(i);
+            stocks[i] = value == null ? 0 : Math.max(0, Long.parseLong(value));
+            if (stocks[i] > 0) {
+                total += stocks[i];
+                nonEmpty++;
+            }
+        }
+        if (nonEmpty == 0) {
+            //全部卖完，不用再检查
+            redisTemplate.opsForSet().remove(SECKILL_BUCKETED_KEY, voucherId.toString());
+            return;
+        }
+        if (nonEmpty == 1) {
+            return;
+        }
+        long avg = total / nonEmpty;
+        //每次把最多的桶匀给最少的桶，直到差距在阈值内
+        for (int round = 0; round < buckets; round++) {
+            int max = -1;
+            int min = -1;
+            for (int i = 0; i < buckets; i++) {
+                if (stocks[i] <= 0) {
+                    continue;
+                }
+                if (max < 0 || stocks[i] > stocks[max]) {
+                    max = i;
+                }
+                if (min < 0 || stocks[i] < stocks[min]) {
+                    min = i;
+                }
+            }
+            long gap = stocks[max] - stocks[min];
+            if (gap <= 1 || gap <= avg * SECKILL_REBALANCE_RATIO) {
+                return;
+            }
+            long amount = Math.min(stocks[max] - avg, avg - stocks[min]);
+            if (amount <= 0) {
+                return;
+            }
+            if (!move(keys, max, min, amount)) {
+                return;
+            }
+            stocks[max] -= amount;
+            stocks[min] += amount;
+        }
+    }
+
+    private boolean move(List<String> keys, int from, int to, long amount) {
+        Long taken = scriptExecutor.execute(RedisScripts.STOCK_TAKE, Collections.singletonList(keys.get(from)), String.valueOf(amount));
+        if (taken == null || taken == 0) {
+            return false;
+        }
+        if (give(keys.get(to), taken)) {
+            return true;
+        }
+        //目标桶刚好卖空了，还给原来的桶，原来的桶也空了就找其他还有库存的桶
+        if (!give(keys.get(from), taken)) {
+            boolean returned = false;
+            for (String key : keys) {
+                if (give(key, taken)) {
+                    returned = true;
+                    break;
+                }
+            }
+            if (!returned) {
+                log.warn("所有桶都已卖空，搬出的" + taken + "个库存不再放回: " + keys.get(from));
+            }
+        }
+        return false;
+    }
+
+    private boolean give(String key, long amount) {
+        Long given = scriptExecutor.execute(RedisScripts.STOCK_GIVE, Collections.singletonList(key), String.valueOf(amount));
+        return given != null && given == 1;
+    }
+}
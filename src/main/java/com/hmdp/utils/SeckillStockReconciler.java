@@ -0,0 +1,293 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存对账：redis里扣了库存但没能落库的订单会让两边的库存一直对不上
+ * 1. 消费端把因为重复下单没落库的订单放进死信队列，这里把库存退回redis，用户没有其他订单的同时移除下单记录
+ *    数据库库存不够导致的失败不进死信队列，这份库存数据库里本来就没有，退回redis只会再卖一次，偏差留给指标
+ * 2. 按优惠券增量统计数据库里的订单数，和redis的库存、下单用户数比较，偏差作为指标输出
+ * 正常情况下 redis库存 + 下单用户数 = 数据库库存 + 订单数，下单用户数 - 订单数是还没落库的订单
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisScriptExecutor scriptExecutor;
+    private final SeckillKeys seckillKeys;
+    private final ISeckillVoucherService seckillVoucherService;
+    private final IVoucherOrderService voucherOrderService;
+    private final TransactionTemplate readOnlyTransaction;
+    private final MeterRegistry meterRegistry;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-reconcile");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //优惠券id -> 还没落库的订单数、库存偏差
+    private final Map<Long, AtomicLong> unsettled = new ConcurrentHashMap<>();
+    private final Map<Long, AtomicLong> drift = new ConcurrentHashMap<>();
+    private final Counter refunded;
+    private final Counter duplicate;
+    private final Counter lost;
+
+    public SeckillStockReconciler(StringRedisTemplate redisTemplate, RedisScriptExecutor scriptExecutor,
+                                  SeckillKeys seckillKeys,
+                                  ISeckillVoucherService seckillVoucherService,
+                                  IVoucherOrderService voucherOrderService,
+                                  PlatformTransactionManager transactionManager, MeterRegistry meterRegistry) {
+        this.redisTemplate = redisTemplate;
+        this.scriptExecutor = scriptExecutor;
+        this.seckillKeys = seckillKeys;
+        this.seckillVoucherService = seckillVoucherService;
+        this.voucherOrderService = voucherOrderService;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.meterRegistry = meterRegistry;
+        this.refunded = meterRegistry.counter("seckill.reconcile.refund", "result", "refunded");
+        this.duplicate = meterRegistry.counter("seckill.reconcile.refund", "result", "duplicate");
+        this.lost = meterRegistry.counter("seckill.reconcile.refund", "result", "lost");
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::reconcileAll,
+                SECKILL_RECONCILE_INTERVAL, SECKILL_RECONCILE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    //订单id:优惠券id:用户id:桶号，旧消息里没有桶号时为空
+    public static String deadLetter(VoucherOrder order, Object bucket) {
+        return order.getId() + ":" + order.getVoucherId() + ":" + order.getUserId() + ":" + (bucket == null ? "" : bucket);
+    }
+
+    //同一时间只有一个节点在对账，锁的值是这一轮的标识，释放时只删自己的锁
+    private void reconcileAll() {
+        String owner = UUID.randomUUID().toString();
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(LOCK_SECKILL_RECONCILE_KEY, owner,
+                LOCK_SECKILL_RECONCILE_TTL, TimeUnit.SECONDS);
+        if (!BooleanUtil.isTrue(locked)) {
+            return;
+        }
+        try {
+            drainDeadLetters();
+            //结束一天以内的秒杀券
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .gt("end_time", LocalDateTime.now().minusDays(1)).list();
+            for (SeckillVoucher voucher : vouchers) {
+                reconcile(voucher.getVoucherId());
+            }
+        } catch (Exception e) {
+            log.error("秒杀库存对账失败", e);
+        } finally {
+            scriptExecutor.execute(RedisScripts.UNLOCK, Collections.singletonList(LOCK_SECKILL_RECONCILE_KEY), owner);
+        }
+    }
+
+    //处理完的死信才从队列头部删掉，中途失败下次从失败的那条继续
+    private void drainDeadLetters() {
+        List<String> letters = redisTemplate.opsForList().range(SECKILL_DLQ_KEY, 0, SECKILL_DLQ_BATCH - 1);
+        if (letters == null || letters.isEmpty()) {
+            return;
+        }
+        int done = 0;
+        try {
+            for (String letter : letters) {
+                refund(letter);
+                done++;
+            }
+        } catch (Exception e) {
+            log.error("退回库存失败: " + letters.get(done), e);
+        }
+        if (done > 0) {
+            redisTemplate.opsForList().trim(SECKILL_DLQ_KEY, done, -1);
+        }
+    }
+
+    private void refund(String letter) {
+        String[] parts = letter.split(":", -1);
+        if (parts.length != 4) {
+            log.error("无法解析的死信，丢弃: " + letter);
+            return;
+        }
+        long orderId = Long.parseLong(parts[0]);
+        Long voucherId = Long.valueOf(parts[1]);
+        Long userId = Long.valueOf(parts[2]);
+        int buckets = seckillKeys.bucketCount(voucherId);
+        int bucket = parts[3].isEmpty() ? locate(voucherId, userId, buckets) : Integer.parseInt(parts[3]);
+        //用户已经有别的订单，是重复下单失败的，保留下单记录继续拦截
+        boolean hasOrder = voucherOrderService.query()
+                .eq("user_id", userId).eq("voucher_id", voucherId).count() > 0;
+        Long r = scriptExecutor.execute(RedisScripts.STOCK_REFUND,
+                Arrays.asList(SeckillKeys.stockKey(voucherId, bucket, buckets),
+                        SeckillKeys.orderKey(voucherId, bucket, buckets),
+                        SeckillKeys.refundedKey(voucherId, bucket, buckets)),
+                String.valueOf(orderId), userId.toString(), hasOrder ? "0" : "1", buckets == 1 ? "1" : "0");
+        if (r == null || r == 0) {
+            return;
+        }
+        (hasOrder ? duplicate : refunded).increment();
+        if (r == 2 && !giveAnywhere(voucherId, buckets)) {
+            //所有桶都卖空了，这个库存只能留在数据库里，库存偏差指标会体现出来
+            lost.increment();
+            log.warn("所有桶都已卖空，订单" + orderId + "的库存没有退回redis");
+        }
+    }
+
+    //旧消息没有桶号，找用户所在的桶，找不到就用用户的第一个桶
+    private int locate(Long voucherId, Long userId, int buckets) {
+        for (int i = 0; i < buckets; i++) {
+            if (BooleanUtil.isTrue(redisTemplate.opsForSet()
+                    .isMember(SeckillKeys.orderKey(voucherId, i, buckets), userId.toString()))) {
+                return i;
+            }
+        }
+        return SeckillKeys.walk(userId, buckets)[0];
+    }
+
+    private boolean giveAnywhere(Long voucherId, int buckets) {
+        for (int i = 0; i < buckets; i++) {
+            Long given = scriptExecutor.execute(RedisScripts.STOCK_GIVE,
+                    Collections.singletonList(SeckillKeys.stockKey(voucherId, i, buckets)), "1");
+            if (given != null && given == 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 比较一张券redis和数据库的库存
+     * 数据库的库存和订单数在同一个只读事务里读，是一致的快照；redis各个桶分别读，高并发时会有一两个的瞬时偏差
+     */
+    public void reconcile(Long voucherId) {
+        int buckets = seckillKeys.bucketCount(voucherId);
+        long[] redisSide = readRedis(voucherId, buckets);
+        long[] dbSide = readOnlyTransaction.execute(status -> readDb(voucherId));
+        if (dbSide == null) {
+            return;
+        }
+        long accepted = redisSide[1];
+        long orders = dbSide[1];
+        gauge(unsettled, "seckill.reconcile.unsettled", voucherId).set(accepted - orders);
+        gauge(drift, "seckill.reconcile.stock.drift", voucherId).set(redisSide[0] + accepted - dbSide[0] - orders);
+    }
+
+    //各个桶的库存之和、下单用户数之和
+    private long[] readRedis(Long voucherId, int buckets) {
+        List<Object> values = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < buckets; i++) {
+                connection.sCard(SeckillKeys.orderKey(voucherId, i, buckets).getBytes(StandardCharsets.UTF_8));
+                connection.get(SeckillKeys.stockKey(voucherId, i, buckets).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        long stock = 0;
+        long accepted = 0;
+        for (int i = 0; i < values.size(); i += 2) {
+            accepted += values.get(i) == null ? 0 : ((Number) values.get(i)).longValue();
+            stock += values.get(i + 1) == null ? 0 : Long.parseLong(values.get(i + 1).toString());
+        }
+        return new long[]{stock, accepted};
+    }
+
+    //数据库库存、订单数
+    private long[] readDb(Long voucherId) {
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            return null;
+        }
+        String key = SECKILL_RECONCILE_KEY + voucherId;
+        List<Object> progress = redisTemplate.opsForHash().multiGet(key,
+                Arrays.asList(SECKILL_RECONCILE_LAST_TIME, SECKILL_RECONCILE_LAST_ID, SECKILL_RECONCILE_COUNT));
+        //旧版本按订单id记录的进度没有下单时间，从头统计
+        LocalDateTime lastTime = progress.get(0) == null ? null : LocalDateTime.parse(progress.get(0).toString());
+        long lastId = lastTime == null ? 0 : Long.parseLong(progress.get(1).toString());
+        long count = lastTime == null ? 0 : Long.parseLong(progress.get(2).toString());
+        LocalDateTime startTime = lastTime;
+        long startId = lastId;
+        /*
+         * 订单id是请求时生成的，消费端积压、等待接管或者节点宕机时小id的订单会很晚才落库，不能按id推进
+         * create_time由数据库在插入时填写，只把SECKILL_RECONCILE_LAG秒之前插入的订单计入进度，
+         * 只要落库事务不超过这个时间，之后就不会再有更早的订单提交
+         */
+        while (true) {
+            List<VoucherOrder> page = voucherOrderService.query().select("id", "create_time")
+                    .eq("voucher_id", voucherId)
+                    .and(lastTime != null, after(lastTime, lastId))
+                    .apply("create_time < DATE_SUB(NOW(), INTERVAL {0} SECOND)", SECKILL_RECONCILE_LAG)
+                    .orderByAsc("create_time", "id").last("limit " + SECKILL_RECONCILE_PAGE).list();
+            if (page.isEmpty()) {
+                break;
+            }
+            count += page.size();
+            VoucherOrder last = page.get(page.size() - 1);
+            lastTime = last.getCreateTime();
+            lastId = last.getId();
+            if (page.size() < SECKILL_RECONCILE_PAGE) {
+                break;
+            }
+        }
+        if (lastTime != null && (!lastTime.equals(startTime) || lastId != startId)) {
+            Map<String, String> saved = new HashMap<>(4);
+            saved.put(SECKILL_RECONCILE_LAST_TIME, lastTime.toString());
+            saved.put(SECKILL_RECONCILE_LAST_ID, String.valueOf(lastId));
+            saved.put(SECKILL_RECONCILE_COUNT, String.valueOf(count));
+            redisTemplate.opsForHash().putAll(key, saved);
+        }
+        //进度之后的订单不多，直接数
+        long recent = voucherOrderService.query().eq("voucher_id", voucherId)
+                .and(lastTime != null, after(lastTime, lastId)).count();
+        return new long[]{voucher.getStock(), count + recent};
+    }
+
+    //(create_time, id) > (lastTime, lastId)
+    private static Consumer<QueryWrapper<VoucherOrder>> after(LocalDateTime lastTime, long lastId) {
+        return w -> w.gt("create_time", lastTime)
+                .or(o -> o.eq("create_time", lastTime).gt("id", lastId));
+    }
+
+    private AtomicLong gauge(Map<Long, AtomicLong> gauges, String name, Long voucherId) {
+        return gauges.computeIfAbsent(voucherId, id ->
+                meterRegistry.gauge(name, Tags.of("voucherId", id.toString()), new AtomicLong()));
+    }
+}
@@ -1,54 +1,160 @@
 package com.hmdp.utils;
 
-import com.sun.corba.se.impl.oa.poa.ActiveObjectMap;
-import com.sun.org.apache.xpath.internal.operations.Bool;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * 可重入的redis锁：hash里记录 持有者 -> 重入次数，持有者是 节点UUID-线程id
+ * 不指定租期时看门狗每隔租期的1/3续期一次；等待锁时订阅释放通知，锁释放或者过期才重试，不轮询redis
+ */
 public class SimpleRedisLock implements ILock {
     private String name;
     private StringRedisTemplate redisTemplate;
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-    //使用静态代码块，在开始前就已经加载好了
-    static{
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
+    private LockSubscriptions subscriptions;
+    private RedisScriptExecutor scriptExecutor;
+
+    private static final String KEY_PREFIX = "lock:";
+    private static final String CHANNEL_PREFIX = "lock:channel:";
+    private static final String ID_PREFIX = UUID.randomUUID().toString() + "-";
+    //看门狗的默认租期
+    private static final long WATCHDOG_LEASE_MILLIS = 30000L;
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "redis-lock-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //锁key:持有者 -> 续期任务
+    private static final Map<String, ScheduledFuture<?>> RENEWALS = new ConcurrentHashMap<>();
 
     public SimpleRedisLock(String name, StringRedisTemplate redisTemplate) {
+        this(name, redisTemplate, null, null);
+    }
+
+    //subscriptions为null时等待锁按锁的剩余时间休眠，scriptExecutor为null时直接用redisTemplate执行脚本
+    public SimpleRedisLock(String name, StringRedisTemplate redisTemplate, LockSubscriptions subscriptions,
+                           RedisScriptExecutor scriptExecutor) {
         this.name = name;
         this.redisTemplate = redisTemplate;
+        this.subscriptions = subscriptions;
+        this.scriptExecutor = scriptExecutor;
     }
 
-    private static final String KEY_PREFIX = "lock:";
-    private static final String ID_PREFIX = UUID.randomUUID().toString() + "-";
-
     @Override
     public boolean tryLock(Long timeoutSec) {
-        long threadId = Thread.currentThread().getId();
-        Boolean success = redisTemplate.opsForValue()
-                .setIfAbsent(KEY_PREFIX + name,threadId + "",timeoutSec, TimeUnit.SECONDS);
-        return Boolean.TRUE.equals(success);
+        return acquire(TimeUnit.SECONDS.toMillis(timeoutSec)) == 0;
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        boolean watchdog = leaseTime <= 0;
+        long leaseMillis = watchdog ? WATCHDOG_LEASE_MILLIS : unit.toMillis(leaseTime);
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        long ttl = acquire(leaseMillis);
+        if (ttl == 0) {
+            afterLocked(watchdog);
+            return true;
+        }
+        if (waitTime <= 0) {
+            return false;
+        }
+        LockSubscriptions.Entry entry = subscriptions == null ? null : subscriptions.subscribe(CHANNEL_PREFIX + name);
+        try {
+            while (true) {
+                //每次重试前清掉之前攒下的通知，等待时只会被这次重试之后的释放唤醒，不会拿着旧通知立刻又访问redis
+                //订阅之后再试一次，订阅之前释放的通知收不到
+                if (entry != null) {
+                    entry.getReleased().drainPermits();
+                }
+                ttl = acquire(leaseMillis);
+                if (ttl == 0) {
+                    afterLocked(watchdog);
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                //等释放通知，最多等到锁过期
+                long wait = Math.min(ttl, remaining);
+                if (entry == null) {
+                    Thread.sleep(wait);
+                } else {
+                    entry.getReleased().tryAcquire(wait, TimeUnit.MILLISECONDS);
+                }
+            }
+        } finally {
+            if (entry != null) {
+                subscriptions.unsubscribe(entry);
+            }
+        }
+    }
+
+    //成功返回0，失败返回锁的剩余毫秒数
+    private long acquire(long leaseMillis) {
+        Long ttl = execute(RedisScripts.LOCK, Collections.singletonList(KEY_PREFIX + name),
+                owner(), String.valueOf(leaseMillis));
+        return ttl == null ? 1 : ttl;
+    }
+
+    //同一个持有者重入时只保留一个续期任务
+    private void afterLocked(boolean watchdog) {
+        if (!watchdog) {
+            return;
+        }
+        String key = KEY_PREFIX + name;
+        String owner = owner();
+        RENEWALS.computeIfAbsent(key + ":" + owner, k -> WATCHDOG.scheduleAtFixedRate(() -> {
+            try {
+                Long renewed = execute(RedisScripts.LOCK_RENEW, Collections.singletonList(key),
+                        owner, String.valueOf(WATCHDOG_LEASE_MILLIS));
+                if (renewed == null || renewed == 0) {
+                    //锁已经不在了，停止续期
+                    cancelRenewal(k);
+                }
+            } catch (Exception e) {
+                //redis暂时不可用，下次再续，抛出去任务就不会再执行了
+            }
+        }, WATCHDOG_LEASE_MILLIS / 3, WATCHDOG_LEASE_MILLIS / 3, TimeUnit.MILLISECONDS));
+    }
+
+    private static void cancelRenewal(String renewalKey) {
+        ScheduledFuture<?> renewal = RENEWALS.remove(renewalKey);
+        if (renewal != null) {
+            renewal.cancel(false);
+        }
     }
 
     @Override
     public void unlock() {
-        //调用lua脚本
-        redisTemplate.execute(UNLOCK_SCRIPT,
-                Collections.singletonList(KEY_PREFIX + name),
-                ID_PREFIX + Thread.currentThread().getId());
+        //调用lua脚本，重入次数减到0才删除锁
+        String key = KEY_PREFIX + name;
+        Long result = execute(RedisScripts.LOCK_UNLOCK, Collections.singletonList(key), owner(), CHANNEL_PREFIX + name);
+        if (result == null || result != 0) {
+            cancelRenewal(key + ":" + owner());
+        }
+        if (result == null || result < 0) {
+            throw new IllegalMonitorStateException("当前线程没有持有锁: " + key);
+        }
+    }
 
-//        String threadId = ID_PREFIX + Thread.currentThread().getId();
-//        String id = redisTemplate.opsForValue().get(KEY_PREFIX + name);
-//        if(threadId.equals(id)){
-//            redisTemplate.delete(KEY_PREFIX + name);
-//        }
+    private Long execute(RedisScripts script, List<String> keys, String... args) {
+        if (scriptExecutor != null) {
+            return scriptExecutor.execute(script, keys, args);
+        }
+        return redisTemplate.execute(script.getScript(), keys, (Object[]) args);
+    }
 
+    private static String owner() {
+        return ID_PREFIX + Thread.currentThread().getId();
     }
 }
@@ -0,0 +1,156 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.time.Clock;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 雪花算法：41位毫秒时间戳 + 10位workerId + 12位毫秒内序列号，生成id不访问网络
+ * workerId启动时从redis租一个，定时续期；续期失败超过租期就不再发号，避免和接手这个workerId的节点重复
+ * 时间起点比RedisIdWorker的早，同一时刻生成的id比RedisIdWorker的大，从redis切换过来不会和旧订单id重复
+ */
+@Slf4j
+public class SnowflakeIdGenerator implements IdGenerator {
+
+    //2020-01-01 00:00:00 UTC
+    private static final long EPOCH_MILLIS = 1577836800000L;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    //时钟回拨或者序列号用完时在上一个时间上继续发号，最多领先系统时钟5秒
+    private static final long MAX_BACKWARD_MILLIS = 5000L;
+
+    private final StringRedisTemplate redisTemplate;
+    private final RedisScriptExecutor scriptExecutor;
+    private final Clock clock;
+    private final String owner = ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "id-worker-lease");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile long workerId = -1;
+    private volatile long leaseExpiresAt;
+    private long lastMillis = -1;
+    private long sequence;
+
+    public SnowflakeIdGenerator(StringRedisTemplate redisTemplate, RedisScriptExecutor scriptExecutor) {
+        this(redisTemplate, scriptExecutor, Clock.systemUTC());
+    }
+
+    //测试时传入可以拨动的时钟
+    SnowflakeIdGenerator(StringRedisTemplate redisTemplate, RedisScriptExecutor scriptExecutor, Clock clock) {
+        this.redisTemplate = redisTemplate;
+        this.scriptExecutor = scriptExecutor;
+        this.clock = clock;
+    }
+
+    @PostConstruct
+    public void start() {
+        lease();
+        scheduler.scheduleWithFixedDelay(this::renew,
+                ID_WORKER_RENEW_INTERVAL, ID_WORKER_RENEW_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        if (workerId >= 0) {
+            scriptExecutor.execute(RedisScripts.UNLOCK, Collections.singletonList(ID_WORKER_KEY + workerId), owner);
+        }
+    }
+
+    //从随机位置开始找一个没人用的workerId
+    private void lease() {
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int id = (start + i) % MAX_WORKERS;
+            long now = clock.millis();
+            Boolean success = redisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_KEY + id, owner, ID_WORKER_TTL, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                leased(id, now + ID_WORKER_TTL);
+                log.info("租用workerId: " + id);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的workerId");
+    }
+
+    private void renew() {
+        try {
+            //按发出续期之前的时间算租期，宁可短一点
+            long now = clock.millis();
+            Long renewed = scriptExecutor.execute(RedisScripts.LEASE_RENEW, Collections.singletonList(ID_WORKER_KEY + workerId),
+                    owner, String.valueOf(ID_WORKER_TTL));
+            if (renewed != null && renewed == 1) {
+                leased(workerId, now + ID_WORKER_TTL);
+                return;
+            }
+            //租约已经过期被别人拿走了，换一个workerId
+            log.error("workerId租约丢失: " + workerId);
+            lease();
+        } catch (Exception e) {
+            log.error("workerId续期失败", e);
+        }
+    }
+
+    //记录租到的workerId和租约到期时间
+    void leased(long workerId, long expiresAt) {
+        this.workerId = workerId;
+        this.leaseExpiresAt = expiresAt;
+    }
+
+    @Override
+    public synchronized long nextId(String keyPrefix) {
+        long now = clock.millis();
+        if (now >= leaseExpiresAt) {
+            throw new IllegalStateException("workerId租约已过期，暂停生成id");
+        }
+        long millis = Math.max(now, lastMillis);
+        long next = 0;
+        if (millis == lastMillis) {
+            next = (sequence + 1) & SEQUENCE_MASK;
+            if (next == 0) {
+                //这一毫秒的序列号用完了，借用下一毫秒
+                millis++;
+            }
+        }
+        //拒绝时不改变状态，时钟恢复后接着发号
+        if (millis - now > MAX_BACKWARD_MILLIS) {
+            throw new IllegalStateException("时钟回拨" + (millis - now) + "毫秒，拒绝生成id");
+        }
+        sequence = next;
+        lastMillis = millis;
+        return (millis - EPOCH_MILLIS) << (WORKER_BITS + SEQUENCE_BITS) | workerId << SEQUENCE_BITS | next;
+    }
+
+    @Override
+    public long epochSecondOf(long id) {
+        return ((id >>> (WORKER_BITS + SEQUENCE_BITS)) + EPOCH_MILLIS) / 1000;
+    }
+
+    @Override
+    public long minIdAt(long epochSecond) {
+        return (epochSecond * 1000 - EPOCH_MILLIS) << (WORKER_BITS + SEQUENCE_BITS);
+    }
+
+    @Override
+    public long currentSecond() {
+        return clock.millis() / 1000;
+    }
+}
@@ -0,0 +1,34 @@
+package com.hmdp.utils;
+
+/**
+ * 本地令牌桶，容量为一秒的令牌数
+ */
+public class TokenBucket {
+
+    private final long rate;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(long rate) {
+        this.rate = rate;
+        this.tokensPerNano = rate / 1e9;
+        this.tokens = rate;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(rate, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
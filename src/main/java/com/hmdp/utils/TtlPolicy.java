@@ -0,0 +1,104 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 过期时间策略：在基础过期时间上加随机抖动，避免同一批写入的key同时过期（缓存雪崩）
+ * 物理TTL和逻辑过期时间分别用jitter和logicalSkew控制抖动幅度，可以按key前缀覆盖
+ */
+public class TtlPolicy {
+
+    public enum Distribution {
+        //不抖动，和原来固定TTL一样
+        NONE,
+        //在[-ratio, ratio]内均匀分布
+        UNIFORM,
+        //均值0、标准差ratio/2的正态分布，截断到[-ratio, ratio]
+        GAUSSIAN
+    }
+
+    private static class Rule {
+        final Long baseSeconds;
+        final double jitter;
+
+        Rule(Long baseSeconds, double jitter) {
+            this.baseSeconds = baseSeconds;
+            this.jitter = jitter;
+        }
+    }
+
+    private final Distribution distribution;
+    private final double jitter;
+    private final double logicalSkew;
+    private final Map<String, Rule> overrides = new ConcurrentHashMap<>();
+
+    public TtlPolicy(Distribution distribution, double jitter, double logicalSkew) {
+        this.distribution = distribution;
+        this.jitter = jitter;
+        this.logicalSkew = logicalSkew;
+    }
+
+    /**
+     * 按前缀覆盖
+     * @param baseSeconds 基础过期时间，null表示沿用调用方传入的时间
+     * @param jitter 抖动比例
+     */
+    public TtlPolicy override(String keyPrefix, Long baseSeconds, double jitter) {
+        overrides.put(keyPrefix, new Rule(baseSeconds, jitter));
+        return this;
+    }
+
+    /**
+     * 物理TTL，单位秒，最少1秒
+     */
+    public long ttlSeconds(String key, long baseSeconds) {
+        Rule rule = ruleOf(key);
+        if (rule == null) {
+            return apply(baseSeconds, jitter);
+        }
+        return apply(rule.baseSeconds == null ? baseSeconds : rule.baseSeconds, rule.jitter);
+    }
+
+    /**
+     * 逻辑过期时间
+     */
+    public LocalDateTime logicalExpireTime(String key, long baseSeconds) {
+        Rule rule = ruleOf(key);
+        long base = rule == null || rule.baseSeconds == null ? baseSeconds : rule.baseSeconds;
+        return LocalDateTime.now().plusSeconds(apply(base, logicalSkew));
+    }
+
+    private Rule ruleOf(String key) {
+        if (overrides.isEmpty()) {
+            return null;
+        }
+        Rule matched = null;
+        int matchedLength = -1;
+        //最长前缀优先
+        for (Map.Entry<String, Rule> entry : overrides.entrySet()) {
+            String prefix = entry.getKey();
+            if (key.startsWith(prefix) && prefix.length() > matchedLength) {
+                matched = entry.getValue();
+                matchedLength = prefix.length();
+            }
+        }
+        return matched;
+    }
+
+    private long apply(long baseSeconds, double ratio) {
+        if (ratio <= 0 || distribution == Distribution.NONE) {
+            return Math.max(1, baseSeconds);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double r;
+        if (distribution == Distribution.GAUSSIAN) {
+            r = Math.max(-ratio, Math.min(ratio, random.nextGaussian() * ratio / 2));
+        } else {
+            r = random.nextDouble(-ratio, ratio);
+        }
+        return Math.max(1, Math.round(baseSeconds * (1 + r)));
+    }
+}
@@ -0,0 +1,7 @@
+-- 缓存变更发件箱，和业务数据在同一个事务里写入，提交后由后台线程拉取并失效缓存
+CREATE TABLE IF NOT EXISTS `tb_cache_outbox` (
+  `id` bigint(20) unsigned NOT NULL AUTO_INCREMENT COMMENT '主键，决定处理顺序',
+  `cache_key` varchar(255) NOT NULL COMMENT '需要失效的缓存key',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  PRIMARY KEY (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='缓存变更发件箱';
@@ -0,0 +1,3 @@
+-- 对账任务按优惠券增量扫描订单：voucher_id = ? AND (create_time, id) > 上次位置 ORDER BY create_time, id
+-- create_time由数据库在插入时填写，不能由应用传入
+ALTER TABLE `tb_voucher_order` ADD INDEX `idx_voucher_create_time` (`voucher_id`, `create_time`, `id`);
@@ -0,0 +1,3 @@
+-- 一人一单：同一个用户同一张优惠券只能有一条订单，多节点并发落库和重新投递时由唯一索引兜底
+-- 加索引前先清理已有的重复订单，否则会执行失败
+ALTER TABLE `tb_voucher_order` ADD UNIQUE INDEX `uk_user_voucher` (`user_id`, `voucher_id`);
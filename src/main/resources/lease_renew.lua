@@ -0,0 +1,5 @@
+-- 续期：key的值还是自己的才延长过期时间 KEYS[1]key ARGV[1]持有者 ARGV[2]过期时间(毫秒)
+if(redis.call('get',KEYS[1]) == ARGV[1]) then
+    return redis.call('pexpire',KEYS[1],ARGV[2])
+end
+return 0
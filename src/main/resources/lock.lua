@@ -0,0 +1,12 @@
+-- 可重入锁：KEYS[1]锁 ARGV[1]持有者 ARGV[2]租期(毫秒)
+-- 没人持有或者自己持有时重入次数加一，成功返回0，失败返回锁剩余的毫秒数
+if(redis.call('exists',KEYS[1]) == 0 or redis.call('hexists',KEYS[1],ARGV[1]) == 1) then
+    redis.call('hincrby',KEYS[1],ARGV[1],1)
+    redis.call('pexpire',KEYS[1],ARGV[2])
+    return 0
+end
+local ttl = redis.call('pttl',KEYS[1])
+if(ttl <= 0) then
+    return 1
+end
+return ttl
@@ -0,0 +1,5 @@
+-- 看门狗续期：KEYS[1]锁 ARGV[1]持有者 ARGV[2]租期(毫秒)，还是自己持有才续期
+if(redis.call('hexists',KEYS[1],ARGV[1]) == 1) then
+    return redis.call('pexpire',KEYS[1],ARGV[2])
+end
+return 0
@@ -0,0 +1,12 @@
+-- 释放可重入锁：KEYS[1]锁 ARGV[1]持有者 ARGV[2]释放通知频道
+-- 频道不是key，不参与集群的slot计算，放在ARGV里避免和锁key不在同一个slot时报CROSSSLOT
+-- 不是自己持有返回-1，重入次数减一后还持有返回0，完全释放返回1并通知等待的线程
+if(redis.call('hexists',KEYS[1],ARGV[1]) == 0) then
+    return -1
+end
+if(redis.call('hincrby',KEYS[1],ARGV[1],-1) > 0) then
+    return 0
+end
+redis.call('del',KEYS[1])
+redis.call('publish',ARGV[2],'0')
+return 1
@@ -0,0 +1,24 @@
+-- 令牌桶，KEYS[1]保存剩余令牌数和上次补充时间
+-- ARGV[1]每秒补充的令牌数 ARGV[2]桶容量 ARGV[3]当前毫秒时间戳
+local key = KEYS[1]
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local now = tonumber(ARGV[3])
+
+local bucket = redis.call('hmget',key,'tokens','ts')
+local tokens = tonumber(bucket[1]) or capacity
+local ts = tonumber(bucket[2]) or now
+-- 其他节点时钟慢时不倒扣
+if(now > ts) then
+    tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+    ts = now
+end
+local allowed = 0
+if(tokens >= 1) then
+    tokens = tokens - 1
+    allowed = 1
+end
+redis.call('hset',key,'tokens',tokens,'ts',ts)
+-- 桶装满所需的时间之后没人访问就删掉
+redis.call('pexpire',key,math.ceil(capacity * 1000 / rate) + 1000)
+return allowed
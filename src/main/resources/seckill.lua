@@ -3,17 +3,39 @@
 --- Created by czx66.
 --- DateTime: 2025/11/12 10:56
 ---
+-- KEYS[1]库存 KEYS[2]下单用户 KEYS[3]订单stream KEYS[4]元数据，分桶时四个key在同一个slot
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local streamKey = KEYS[3]
+local metaKey = KEYS[4]
+
 local voucherId = ARGV[1]
 local userId = ARGV[2]
+local orderId = ARGV[3]
+local now = tonumber(ARGV[4])
+-- 桶号跟着订单进stream，落库失败时退回同一个桶
+local bucket = ARGV[5]
 
-local stockKey = 'seckill:stock:' .. voucherId
-local stockKey = 'seckill:order:' .. voucherId
-
-if(tonumber(redis.call('get',stockKey)) <= 0) then
-    return 1
+-- 秒杀时间窗口，没有元数据的旧优惠券不判断
+local window = redis.call('hmget',metaKey,'begin','end')
+if(window[1] and now < tonumber(window[1])) then
+    return 3
+end
+if(window[2] and now > tonumber(window[2])) then
+    return 4
 end
+
+-- 先判断重复下单，用户买过的桶卖空了也要拦住，不能去下一个桶再买
 if(redis.call('sismember',orderKey,userId) == 1) then
     return 2
 end
+-- 库存没初始化也当作不足
+local stock = tonumber(redis.call('get',stockKey))
+if(stock == nil or stock <= 0) then
+    return 1
+end
 redis.call('incrby',stockKey,-1)
-redis.call('sadd',orderKey,userId)
\ No newline at end of file
+redis.call('sadd',orderKey,userId)
+-- 订单和扣库存在同一个脚本里写进stream，不会出现扣了库存订单却丢了
+redis.call('xadd',streamKey,'*','userId',userId,'voucherId',voucherId,'id',orderId,'bucket',bucket)
+return 0
@@ -0,0 +1,7 @@
+-- 只往还有库存的桶里放，空桶可能已经有用户在上面拦截过，补货会破坏一人一单的判断
+local stock = tonumber(redis.call('get',KEYS[1]))
+if(stock == nil or stock <= 0) then
+    return 0
+end
+redis.call('incrby',KEYS[1],ARGV[1])
+return 1
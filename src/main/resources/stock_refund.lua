@@ -0,0 +1,17 @@
+-- 退回一个没能落库的订单：KEYS[1]库存 KEYS[2]下单用户 KEYS[3]已退回的订单id，三个key在同一个slot
+-- ARGV[1]订单id ARGV[2]用户id ARGV[3]是否移除下单用户 ARGV[4]空桶是否也可以放回
+-- 同一个订单只退一次
+if(redis.call('sadd',KEYS[3],ARGV[1]) == 0) then
+    return 0
+end
+-- 用户已经有别的订单时保留下单记录，继续拦截重复下单
+if(ARGV[3] == '1') then
+    redis.call('srem',KEYS[2],ARGV[2])
+end
+-- 分桶的空桶不能补货，见stock_give.lua，由调用方放到其他桶
+local stock = tonumber(redis.call('get',KEYS[1]))
+if(ARGV[4] == '1' or (stock ~= nil and stock > 0)) then
+    redis.call('incrby',KEYS[1],1)
+    return 1
+end
+return 2
@@ -0,0 +1,8 @@
+-- 从一个桶里取出ARGV[1]个库存，不够就不取，返回取出的数量
+local stock = tonumber(redis.call('get',KEYS[1]))
+local n = tonumber(ARGV[1])
+if(stock == nil or stock < n) then
+    return 0
+end
+redis.call('incrby',KEYS[1],-n)
+return n
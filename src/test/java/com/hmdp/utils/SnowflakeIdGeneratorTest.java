@@ -0,0 +1,175 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnowflakeIdGeneratorTest {
+
+    //2020-01-01 00:00:00 UTC
+    private static final long EPOCH_MILLIS = 1577836800000L;
+    private static final long START = EPOCH_MILLIS + 86400000L * 1000;
+
+    @Test
+    void idsAreUniqueAndIncreasingAcrossThreads() throws Exception {
+        SnowflakeIdGenerator generator = generator(Clock.systemUTC(), Long.MAX_VALUE);
+        int threads = 8;
+        int perThread = 20000;
+        //nextId锁的是generator自己，在同一把锁里记录，列表顺序就是发号顺序
+        List<Long> issued = new ArrayList<>(threads * perThread);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < perThread; i++) {
+                    synchronized (generator) {
+                        issued.add(generator.nextId("order"));
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+        assertEquals(threads * perThread, issued.size());
+        for (int i = 1; i < issued.size(); i++) {
+            assertTrue(issued.get(i) > issued.get(i - 1), "第" + i + "个id没有递增");
+        }
+        assertEquals(issued.size(), new HashSet<>(issued).size());
+    }
+
+    @Test
+    void sequenceOverflowBorrowsNextMillisecond() {
+        MutableClock clock = new MutableClock(START);
+        SnowflakeIdGenerator generator = generator(clock, Long.MAX_VALUE);
+        Set<Long> ids = new HashSet<>();
+        long last = -1;
+        //时钟不动，每毫秒4096个序列号用完后借用下一毫秒
+        for (int i = 0; i < 4096 * 3; i++) {
+            long id = generator.nextId("order");
+            assertTrue(id > last);
+            last = id;
+            ids.add(id);
+            assertEquals(START + i / 4096, millisOf(id));
+            assertEquals(7, workerOf(id));
+        }
+        assertEquals(4096 * 3, ids.size());
+    }
+
+    @Test
+    void smallClockRollbackKeepsIdsIncreasing() {
+        MutableClock clock = new MutableClock(START);
+        SnowflakeIdGenerator generator = generator(clock, Long.MAX_VALUE);
+        long before = generator.nextId("order");
+        clock.set(START - 3000);
+        long after = generator.nextId("order");
+        assertTrue(after > before);
+        assertEquals(START, millisOf(after));
+        //时钟追上来之后按新的时间发号
+        clock.set(START + 10);
+        assertEquals(START + 10, millisOf(generator.nextId("order")));
+    }
+
+    @Test
+    void largeClockRollbackIsRejected() {
+        MutableClock clock = new MutableClock(START);
+        SnowflakeIdGenerator generator = generator(clock, Long.MAX_VALUE);
+        long before = generator.nextId("order");
+        clock.set(START - 5001);
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+        //拒绝之后状态没有变，时钟恢复后继续递增
+        clock.set(START);
+        assertTrue(generator.nextId("order") > before);
+    }
+
+    @Test
+    void expiredLeaseStopsIssuing() {
+        MutableClock clock = new MutableClock(START);
+        SnowflakeIdGenerator generator = generator(clock, START + 100);
+        generator.nextId("order");
+        clock.set(START + 99);
+        generator.nextId("order");
+        clock.set(START + 100);
+        assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+        //续期之后恢复
+        generator.leased(7, START + 30000);
+        assertEquals(START + 100, millisOf(generator.nextId("order")));
+    }
+
+    @Test
+    void timestampHelpersMatchIdLayout() {
+        MutableClock clock = new MutableClock(START + 1500);
+        SnowflakeIdGenerator generator = generator(clock, Long.MAX_VALUE);
+        long id = generator.nextId("order");
+        long second = (START + 1500) / 1000;
+        assertEquals(second, generator.epochSecondOf(id));
+        assertEquals(second, generator.currentSecond());
+        assertTrue(generator.minIdAt(second) <= id);
+        assertTrue(generator.minIdAt(second + 1) > id);
+    }
+
+    private static SnowflakeIdGenerator generator(Clock clock, long leaseExpiresAt) {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(null, null, clock);
+        generator.leased(7, leaseExpiresAt);
+        return generator;
+    }
+
+    private static long millisOf(long id) {
+        return (id >>> 22) + EPOCH_MILLIS;
+    }
+
+    private static long workerOf(long id) {
+        return (id >>> 12) & 1023;
+    }
+
+    private static class MutableClock extends Clock {
+        private final AtomicLong millis;
+
+        MutableClock(long millis) {
+            this.millis = new AtomicLong(millis);
+        }
+
+        void set(long value) {
+            millis.set(value);
+        }
+
+        @Override
+        public long millis() {
+            return millis.get();
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis.get());
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TtlPolicyTest {
+
+    private static final long BASE_SECONDS = 1800;
+
+    //同一时刻写入的key过期后立刻被重新加载，抖动之后每秒未命中的峰值要远低于固定TTL
+    @Test
+    void jitterFlattensMissPeak() {
+        int keys = 20000;
+        int horizon = 4 * 3600;
+        int fixed = missPeak(new TtlPolicy(TtlPolicy.Distribution.NONE, 0, 0), keys, horizon);
+        int uniform = missPeak(new TtlPolicy(TtlPolicy.Distribution.UNIFORM, 0.1, 0.1), keys, horizon);
+        int gaussian = missPeak(new TtlPolicy(TtlPolicy.Distribution.GAUSSIAN, 0.1, 0.1), keys, horizon);
+        assertEquals(keys, fixed);
+        assertTrue(uniform * 20 < fixed, "均匀抖动的峰值" + uniform);
+        assertTrue(gaussian * 10 < fixed, "正态抖动的峰值" + gaussian);
+    }
+
+    @Test
+    void ttlStaysWithinJitterBounds() {
+        for (TtlPolicy.Distribution distribution : TtlPolicy.Distribution.values()) {
+            TtlPolicy policy = new TtlPolicy(distribution, 0.1, 0.05);
+            for (int i = 0; i < 10000; i++) {
+                long ttl = policy.ttlSeconds("cache:shop:" + i, BASE_SECONDS);
+                assertTrue(ttl >= 1620 && ttl <= 1980, distribution + ": " + ttl);
+            }
+        }
+    }
+
+    @Test
+    void overrideUsesLongestPrefix() {
+        TtlPolicy policy = new TtlPolicy(TtlPolicy.Distribution.UNIFORM, 0.1, 0.1)
+                .override("cache:", null, 0)
+                .override("cache:shop:", 600L, 0.2);
+        assertEquals(BASE_SECONDS, policy.ttlSeconds("cache:type:1", BASE_SECONDS));
+        for (int i = 0; i < 1000; i++) {
+            long ttl = policy.ttlSeconds("cache:shop:" + i, BASE_SECONDS);
+            assertTrue(ttl >= 480 && ttl <= 720, "ttl=" + ttl);
+        }
+    }
+
+    @Test
+    void ttlIsAtLeastOneSecond() {
+        TtlPolicy policy = new TtlPolicy(TtlPolicy.Distribution.UNIFORM, 0.9, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(policy.ttlSeconds("k", 1) >= 1);
+        }
+        assertEquals(1, new TtlPolicy(TtlPolicy.Distribution.NONE, 0, 0).ttlSeconds("k", 0));
+    }
+
+    @Test
+    void logicalExpireTimeStaysWithinSkew() {
+        TtlPolicy policy = new TtlPolicy(TtlPolicy.Distribution.UNIFORM, 0, 0.1);
+        for (int i = 0; i < 1000; i++) {
+            LocalDateTime before = LocalDateTime.now();
+            LocalDateTime expire = policy.logicalExpireTime("cache:shop:" + i, BASE_SECONDS);
+            assertFalse(expire.isBefore(before.plusSeconds(1620)));
+            assertFalse(expire.isAfter(LocalDateTime.now().plusSeconds(1980)));
+        }
+    }
+
+    private static int missPeak(TtlPolicy policy, int keys, int horizon) {
+        int[] misses = new int[horizon];
+        for (int k = 0; k < keys; k++) {
+            String key = "cache:shop:" + k;
+            long t = policy.ttlSeconds(key, BASE_SECONDS);
+            while (t < horizon) {
+                misses[(int) t]++;
+                t += policy.ttlSeconds(key, BASE_SECONDS);
+            }
+        }
+        int peak = 0;
+        for (int m : misses) {
+            peak = Math.max(peak, m);
+        }
+        return peak;
+    }
+}